@@ -0,0 +1,141 @@
+package com.github.mobile.appiumlibrary.locators;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.mobile.appiumlibrary.locators.ElementFinder.KeyAttrs;
+import com.github.mobile.appiumlibrary.utils.Python;
+
+/**
+ * Compares building the XPath of default strategy locators with
+ * {@link XpathBuilder} against the String.format based code it replaced.
+ * Run with `mvn -Pbenchmarks test`, which reports the allocation per
+ * operation as `gc.alloc.rate.norm`.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class XpathBuilderBenchmark {
+
+	/**
+	 * Locator and tag separated by `|`: a plain id, a tag with URL
+	 * attributes, a tag with constraints and a value with both quotes
+	 */
+	@Param({ "login_button|", "logo.png|image", "remember|checkbox", "It's \"quoted\"|" })
+	public String locatorAndTag;
+
+	protected CompiledLocator compiledLocator;
+
+	protected String baseUrl;
+
+	@Setup
+	public void setUp() {
+		String[] parts = locatorAndTag.split("\\|", -1);
+		compiledLocator = ElementFinder.compile(parts[0], parts[1].length() > 0 ? parts[1] : null);
+		baseUrl = compiledLocator.keyAttrs.hasUrlAttrs() ? "http://localhost/app" : null;
+	}
+
+	@Benchmark
+	public String xpathBuilder() {
+		return XpathBuilder.keyAttrsXpath(compiledLocator, baseUrl);
+	}
+
+	@Benchmark
+	public String formatted() {
+		return FormattedXpath.keyAttrsXpath(compiledLocator, baseUrl);
+	}
+
+	@Benchmark
+	public String xpathBuilderEscape() {
+		return XpathBuilder.escapeValue(compiledLocator.criteria);
+	}
+
+	@Benchmark
+	public String formattedEscape() {
+		return FormattedXpath.escapeXpathValue(compiledLocator.criteria);
+	}
+
+	/**
+	 * The XPath building of the default strategy before {@link XpathBuilder}
+	 */
+	protected static class FormattedXpath {
+
+		protected static String keyAttrsXpath(CompiledLocator compiledLocator, String baseUrl) {
+			List<String> xpathUrlSearchers = baseUrl != null ? getAttrsWithUrl(baseUrl, compiledLocator.keyAttrs,
+					compiledLocator.criteria) : new ArrayList<String>();
+			return getKeyAttrsXpath(compiledLocator, xpathUrlSearchers);
+		}
+
+		protected static String getKeyAttrsXpath(CompiledLocator compiledLocator, List<String> xpathUrlSearchers) {
+			KeyAttrs keyAttrs = compiledLocator.keyAttrs;
+			String xpathCriteria = escapeXpathValue(compiledLocator.criteria);
+			String xpathTag = compiledLocator.tag;
+
+			if (compiledLocator.tag == null) {
+				xpathTag = "*";
+			}
+
+			List<String> xpathConstraints = new ArrayList<String>();
+			if (compiledLocator.constraints != null) {
+				for (Entry<String, String> entry : compiledLocator.constraints.entrySet()) {
+					xpathConstraints.add(String.format("@%s='%s'", entry.getKey(), entry.getValue()));
+				}
+			}
+			List<String> xpathSearchers = new ArrayList<String>();
+			for (String attr : keyAttrs.getKeyAttrs()) {
+				xpathSearchers.add(String.format("%s=%s", attr, xpathCriteria));
+			}
+			xpathSearchers.addAll(xpathUrlSearchers);
+			return String.format("//%s[%s(%s)]", xpathTag, Python.join(" and ", xpathConstraints)
+					+ (xpathConstraints.size() > 0 ? " and " : ""), Python.join(" or ", xpathSearchers));
+		}
+
+		protected static List<String> getAttrsWithUrl(String baseUrl, KeyAttrs keyAttrs, String criteria) {
+			List<String> attrs = new ArrayList<String>();
+			String url = null;
+			String xpathUrl = null;
+			String[] srcHref = { "@src", "@href" };
+			for (String attr : srcHref) {
+				for (String keyAttr : keyAttrs.getKeyAttrs()) {
+					if (attr.equals(keyAttr)) {
+						if (url == null || xpathUrl == null) {
+							url = baseUrl + "/" + criteria;
+							xpathUrl = escapeXpathValue(url);
+						}
+						attrs.add(String.format("%s=%s", attr, xpathUrl));
+					}
+				}
+			}
+			return attrs;
+		}
+
+		protected static String escapeXpathValue(String value) {
+			if (value.contains("\"") && value.contains("'")) {
+				String[] partsWoApos = value.split("'");
+				return String.format("concat('%s')", Python.join("', \"'\", '", Arrays.asList(partsWoApos)));
+			}
+			if (value.contains("'")) {
+				return String.format("\"%s\"", value);
+			}
+			return String.format("'%s'", value);
+		}
+	}
+}
@@ -15,6 +15,7 @@ import com.github.mobile.appiumlibrary.keywords.Screenshot;
 import com.github.mobile.appiumlibrary.keywords.Touch;
 import com.github.mobile.appiumlibrary.keywords.Waiting;
 import com.github.mobile.appiumlibrary.utils.Javadoc2Libdoc;
+import com.github.mobile.appiumlibrary.utils.PollPolicy;
 
 /**
  * AppiumLibrary is a mobile testing library for the Robot Framework and was
@@ -191,15 +192,32 @@ public class AppiumLibrary extends AnnotationLibrary {
 		this(timeout, "Capture Page Screenshot");
 	}
 	
+	public AppiumLibrary(String timeout, String runOnFailure){
+		this(timeout, runOnFailure, "False");
+	}
+	
+	public AppiumLibrary(String timeout, String runOnFailure, String elementCache){
+		this(timeout, runOnFailure, elementCache, PollPolicy.DEFAULT);
+	}
+	
 	/**
-	 * AppiumLibrary is extended for Robot Framework to support Andorid & IOS automation test
+	 * AppiumLibrary is extended for Robot Framework to support Andorid & IOS automation test<br>
+	 * <br>
+	 * <b>timeout</b> is the default timeout of the waiting keywords (default 5.0).<br>
+	 * <b>runOnFailure</b> is the keyword to run if a keyword fails (default Capture Page Screenshot).<br>
+	 * <b>elementCache</b> enables reusing element handles of the current application until the
+	 * screen changes (default False). See `Log Element Cache Statistics`.<br>
+	 * <b>pollPolicy</b> is the default poll policy of the waiting keywords (default fixed:200ms).
+	 * See `Set Poll Policy`.
 	 */
-	public AppiumLibrary(String timeout, String runOnFailure){
+	public AppiumLibrary(String timeout, String runOnFailure, String elementCache, String pollPolicy){
 		super();
 		addKeywordPattern(KEYWORD_PATTERN);
 		createKeywordFactory();
 		applicationManagement.setTimeout(timeout);
 		this.runOnFailure.registerKeywordToRunOnFailure(runOnFailure);
+		this.element.setElementCacheEnabled(Boolean.parseBoolean(elementCache.trim()));
+		this.waiting.setDefaultPollPolicy(PollPolicy.parse(pollPolicy));
 	}
 	
 	@Autowired
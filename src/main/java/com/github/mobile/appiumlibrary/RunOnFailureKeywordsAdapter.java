@@ -2,13 +2,18 @@ package com.github.mobile.appiumlibrary;
 
 import org.robotframework.javalib.annotation.Autowired;
 
+import com.github.mobile.appiumlibrary.keywords.ApplicationManagement;
 import com.github.mobile.appiumlibrary.keywords.RunOnFailure;
+import com.github.mobile.appiumlibrary.utils.DriverCache;
 
 public abstract class RunOnFailureKeywordsAdapter implements RunOnFailureKeywords {
 
 	@Autowired
 	private RunOnFailure runOnFailure;
 
+	@Autowired
+	private ApplicationManagement applicationManagement;
+
 	/**
 	 * This method is called by the
 	 * com.github.markusbernhardt.selenium2library.aspects.RunOnFailureAspect in
@@ -20,4 +25,19 @@ public abstract class RunOnFailureKeywordsAdapter implements RunOnFailureKeyword
 		runOnFailure.runOnFailure();
 	}
 
+	/**
+	 * Returns the index of the current application of this library instance
+	 * or null. Called by the
+	 * com.github.mobile.appiumlibrary.aspects.KeywordTimingAspect to
+	 * attribute the keyword calls to applications.
+	 */
+	public String getCurrentApplicationIndex() {
+		DriverCache driverCache = getDriverCache();
+		return driverCache != null ? driverCache.getCurrentSessionId() : null;
+	}
+
+	protected DriverCache getDriverCache() {
+		return applicationManagement != null ? applicationManagement.getDriverCache() : null;
+	}
+
 }
@@ -1,15 +1,34 @@
 package com.github.mobile.appiumlibrary.keywords;
 
+import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import io.appium.java_client.AppiumDriver;
 import io.appium.java_client.android.AndroidDriver;
-import io.appium.java_client.ios.IOSDriver;
 
 import org.openqa.selenium.ScreenOrientation;
+import org.openqa.selenium.WebDriverException;
 import org.openqa.selenium.remote.DesiredCapabilities;
+import org.openqa.selenium.remote.http.HttpClient;
+import org.openqa.selenium.remote.internal.ApacheHttpClient;
 import org.robotframework.javalib.annotation.ArgumentNames;
 import org.robotframework.javalib.annotation.Autowired;
 import org.robotframework.javalib.annotation.RobotKeyword;
@@ -17,23 +36,81 @@ import org.robotframework.javalib.annotation.RobotKeywordOverload;
 import org.robotframework.javalib.annotation.RobotKeywords;
 
 import com.github.mobile.appiumlibrary.AppiumLibraryFatalException;
+import com.github.mobile.appiumlibrary.AppiumLibraryNonFatalException;
 import com.github.mobile.appiumlibrary.RunOnFailureKeywordsAdapter;
+import com.github.mobile.appiumlibrary.locators.ElementCache;
+import com.github.mobile.appiumlibrary.locators.ElementFinder;
+import com.github.mobile.appiumlibrary.locators.PageSnapshot;
+import com.github.mobile.appiumlibrary.utils.AttachableDrivers;
+import com.github.mobile.appiumlibrary.utils.CommandStatistics;
+import com.github.mobile.appiumlibrary.utils.DaemonThreadFactory;
 import com.github.mobile.appiumlibrary.utils.DriverCache;
+import com.github.mobile.appiumlibrary.utils.DriverCache.SessionIdAliasWebDriverTuple;
+import com.github.mobile.appiumlibrary.utils.KeywordStatistics;
+import com.github.mobile.appiumlibrary.utils.PooledHttpTransport;
+import com.github.mobile.appiumlibrary.utils.ResizableSemaphore;
 import com.github.mobile.appiumlibrary.utils.Robotframework;
+import com.github.mobile.appiumlibrary.utils.ServerBalancer;
+import com.github.mobile.appiumlibrary.utils.SessionMonitor;
+import com.github.mobile.appiumlibrary.utils.SessionPool;
 
 @RobotKeywords
 public class ApplicationManagement extends RunOnFailureKeywordsAdapter{
 	protected DriverCache driverCache = new DriverCache();
+	
+	protected SessionPool sessionPool = new SessionPool();
+	
+	protected SessionMonitor sessionMonitor = new SessionMonitor(driverCache);
+	
+	protected ServerBalancer serverBalancer = new ServerBalancer();
+	
+	/**
+	 * Transport of the driver commands of applications opened from now on,
+	 * null for the default transport of the java client
+	 */
+	protected volatile PooledHttpTransport httpTransport;
+	
+	protected final HttpClient.Factory defaultHttpClientFactory = new ApacheHttpClient.Factory();
+	
+	/**
+	 * Statistics of the commands sent by all applications
+	 */
+	protected final CommandStatistics commandStatistics = new CommandStatistics();
+	
+	/**
+	 * Number of sessions being created by server URL, guarded by itself
+	 */
+	protected final Map<String, Integer> pendingCreations = new HashMap<String, Integer>();
+	
+	/**
+	 * Maximum number of sessions created on the same server at a time,
+	 * changed under the lock of the permits
+	 */
+	protected volatile int maxConcurrentSessionCreations = 1;
+	
+	/**
+	 * Session creation permits by server host and port, added under its lock
+	 */
+	protected final ConcurrentMap<String, ResizableSemaphore> sessionCreationPermits = new ConcurrentHashMap<String, ResizableSemaphore>();
+	
+	protected final ExecutorService openExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("appiumlibrary-open"));
 	/**
 	 * Timeout in milliseconds
 	 */
 	protected double timeout = 5.0;
 
 	/**
-	 * Implicit wait in milliseconds
+	 * Implicit wait in seconds the server waits for elements to appear when
+	 * they are resolved for an action, 0 to wait on the client side only
 	 */
 	protected double implicitWait = 0;
 
+	/**
+	 * Maximum age in seconds of a page source snapshot answering checks, 0 to
+	 * disable snapshots
+	 */
+	protected double pageSnapshotMaxAge = 0;
+
 	/**
 	 * Instantiated Logging keyword bean
 	 */
@@ -52,6 +129,72 @@ public class ApplicationManagement extends RunOnFailureKeywordsAdapter{
 		return driverCache.getCurrent();
 	}
 	
+	public SessionIdAliasWebDriverTuple getCurrentSession(){
+		return driverCache.getCurrentSession();
+	}
+	
+	/**
+	 * Makes the application current for the calling thread only, see
+	 * {@link DriverCache#bindCurrentSession}.
+	 */
+	public void bindCurrentSession(SessionIdAliasWebDriverTuple session){
+		driverCache.bindCurrentSession(session);
+	}
+	
+	/**
+	 * Returns the element handle cache of the current application or null,
+	 * if no application is open.
+	 */
+	public ElementCache getElementCache(){
+		SessionIdAliasWebDriverTuple session = driverCache.getCurrentSession();
+		return session != null ? session.elementCache : null;
+	}
+	
+	/**
+	 * Drops everything cached about the screen of the current application.
+	 * Has to be called after every action that might change the screen.
+	 */
+	public void invalidateCaches(){
+		SessionIdAliasWebDriverTuple session = driverCache.getCurrentSession();
+		if(session != null){
+			session.elementCache.invalidate();
+			session.pageSnapshot = null;
+			ElementFinder.getUrlCache(session.webDriver).invalidate();
+		}
+	}
+	
+	public boolean isPageSnapshotEnabled(){
+		return pageSnapshotMaxAge > 0;
+	}
+	
+	/**
+	 * Returns the page source snapshot of the current application, taking a
+	 * new one if there is none or it is older than the maximum age.
+	 */
+	public PageSnapshot getPageSnapshot(){
+		SessionIdAliasWebDriverTuple session = driverCache.getCurrentSession();
+		PageSnapshot snapshot = session.pageSnapshot;
+		if(snapshot == null || snapshot.getAgeNanos() > (long) (pageSnapshotMaxAge * 1000000000L)){
+			snapshot = takePageSnapshot(session);
+		}
+		return snapshot;
+	}
+	
+	protected PageSnapshot takePageSnapshot(SessionIdAliasWebDriverTuple session){
+		AppiumDriver driver = driverCache.getDriver(session);
+		PageSnapshot snapshot = PageSnapshot.parse(driver.getPageSource(), driver instanceof AndroidDriver);
+		session.pageSnapshot = snapshot;
+		return snapshot;
+	}
+	
+	/**
+	 * Returns the page source, taken from a fresh page source snapshot if
+	 * snapshots are enabled.
+	 */
+	public String getSnapshotSource(){
+		return isPageSnapshotEnabled() ? getPageSnapshot().getSource() : getSource();
+	}
+	
 	public double getTimeout() {
 		return timeout;
 	}
@@ -60,6 +203,34 @@ public class ApplicationManagement extends RunOnFailureKeywordsAdapter{
 		this.timeout = Robotframework.timestrToSecs(timestr);
 	}
 	
+	public double getImplicitWait() {
+		return implicitWait;
+	}
+	
+	/**
+	 * Sets the implicit wait of the current application on the server, if it
+	 * differs from the one set last.
+	 */
+	public void applyImplicitWait(double seconds){
+		SessionIdAliasWebDriverTuple session = driverCache.getCurrentSession();
+		if(session == null || session.implicitWait == seconds){
+			return;
+		}
+		// unknown until the server confirms it, so that a failed call is repeated
+		session.implicitWait = Double.NaN;
+		driverCache.getDriver(session).manage().timeouts().implicitlyWait((long) (seconds * 1000), TimeUnit.MILLISECONDS);
+		session.implicitWait = seconds;
+	}
+	
+	/**
+	 * Returns the implicit wait last set on the server for the current
+	 * application, NaN if it is unknown.
+	 */
+	public double getAppliedImplicitWait(){
+		SessionIdAliasWebDriverTuple session = driverCache.getCurrentSession();
+		return session != null ? session.implicitWait : Double.NaN;
+	}
+	
 	// ##############################
 	// Keywords
 	// ##############################
@@ -70,6 +241,7 @@ public class ApplicationManagement extends RunOnFailureKeywordsAdapter{
 	public void closeApplication(){
 		logging.debug(String.format("Closing application with session id %s", driverCache.getCurrentSessionId()));
 		driverCache.close();
+		logEvictions();
 	}
 	
 	
@@ -79,18 +251,53 @@ public class ApplicationManagement extends RunOnFailureKeywordsAdapter{
 	 * make sure all the applications are closed before the test execution
 	 * finishes.<br>
 	 * After this keyword, the application indices returned by `Open Application`
-	 * are reset and start from `1`
+	 * are reset and start from `1`<br>
+	 * <br>
+	 * The applications are closed concurrently and the time each took is
+	 * logged. Applications that are not closed within <b>timeout</b> are
+	 * abandoned with a warning, so that a hung session does not block the
+	 * teardown.
+	 * @param timeout
+	 * 			Maximum time to wait for the applications to close
 	 */
 	@RobotKeyword
-	public void closeAllApplications(){
+	@ArgumentNames({"timeout=1 minute"})
+	public void closeAllApplications(String timeout){
 		logging.debug("Closing all applications");
-		driverCache.closeAll();
+		logEvictions();
+		long timeoutNanos = (long) (Robotframework.timestrToSecs(timeout) * 1000000000L);
+		for(DriverCache.ShutdownResult result : driverCache.closeAll(timeoutNanos)){
+			String application = result.alias != null ? String.format("%s (%s)", result.id, result.alias) : result.id;
+			if(!result.isDone()){
+				logging.warn(String.format("Abandoned application %s, which did not close within %s", application, timeout));
+			}else if(result.getFailure() != null){
+				logging.warn(String.format("Closing application %s failed after %s: %s", application,
+						Robotframework.secsToTimestr(result.getShutdownNanos() / 1000000000.0), result.getFailure().getMessage()));
+			}else{
+				logging.info(String.format("Closed application %s in %s", application,
+						Robotframework.secsToTimestr(result.getShutdownNanos() / 1000000000.0)));
+			}
+		}
+	}
+	
+	@RobotKeywordOverload
+	public void closeAllApplications(){
+		closeAllApplications("1 minute");
 	}
 	
 	/**
 	 * Opens a new application to given Appium server.
 	 * Capabilities of appium server, Android and iOS,<br>
 	 * Please check http://appium.io/slate/en/master/?python#appium-server-capabilities<br>
+	 * <br>
+	 * <b>remoteURL</b> may also list several servers separated by `|`, or
+	 * name servers registered with `Register Appium Servers` as
+	 * `servers:name`. The servers are then probed by their `/status`
+	 * endpoint concurrently, and the application is opened on the healthy
+	 * server with the fewest applications of this library, preferring the
+	 * fastest responding one. If the session can not be created there, the
+	 * next server is tried. Probe results and failures are remembered for
+	 * 10 seconds.
 	 * @param remoteURL
 	 * 			The appium server url
 	 * @param alias
@@ -102,28 +309,880 @@ public class ApplicationManagement extends RunOnFailureKeywordsAdapter{
 	@RobotKeyword
 	@ArgumentNames({"remoteURL","alias","desiredCaps"})
 	public String openApplication(String remoteURL, String alias, String desiredCaps) throws MalformedURLException{
-		AppiumDriver driver = createApplication(remoteURL, desiredCaps);
+		AppiumDriver driver = leaseOrCreateApplication(remoteURL, desiredCaps);
+		return registerApplication(driver, remoteURL, alias, desiredCaps);
+	}
+	
+	/**
+	 * Opens several applications concurrently, e.g. on all devices taking
+	 * part in a test, and returns their indices.<br>
+	 * <br>
+	 * <b>applications</b> are given as triples of remote URL, alias and
+	 * desired capabilities, like the arguments of `Open Application`. The
+	 * applications are registered in the given order, so the last one becomes
+	 * the current application. If any application fails to open, the others
+	 * are closed again, or returned to their pool, and the keyword fails.<br>
+	 * <br>
+	 * At most `Set Max Concurrent Session Creations` sessions are created on
+	 * the same Appium server at a time.
+	 * @param applications
+	 * 			Remote URL, alias and desired capabilities of each application
+	 * @return The application indices
+	 * @throws MalformedURLException
+	 */
+	@RobotKeyword
+	@ArgumentNames({"*applications"})
+	public List<String> openApplications(String... applications) throws MalformedURLException{
+		if(applications.length == 0 || applications.length % 3 != 0){
+			throw new AppiumLibraryNonFatalException(String.format(
+					"Applications must be given as triples of remote URL, alias and desired capabilities, but got %d arguments",
+					applications.length));
+		}
+		List<Future<AppiumDriver>> futures = new ArrayList<Future<AppiumDriver>>();
+		for(int i = 0; i < applications.length; i += 3){
+			final String remoteURL = applications[i];
+			final String desiredCaps = applications[i + 2];
+			futures.add(openExecutor.submit(new Callable<AppiumDriver>(){
+				
+				@Override
+				public AppiumDriver call() throws Exception{
+					return leaseOrCreateApplication(remoteURL, desiredCaps);
+				}
+			}));
+		}
+		List<AppiumDriver> drivers = new ArrayList<AppiumDriver>();
+		List<String> poolKeys = new ArrayList<String>();
+		Throwable failure = null;
+		for(int i = 0; i < futures.size(); i++){
+			try{
+				drivers.add(futures.get(i).get());
+				poolKeys.add(SessionPool.toKey(applications[3 * i], applications[3 * i + 2]));
+			}catch(ExecutionException e){
+				if(failure == null){
+					failure = e.getCause();
+				}
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				if(failure == null){
+					failure = e;
+				}
+			}
+		}
+		if(failure != null){
+			for(int i = 0; i < drivers.size(); i++){
+				// like Close Application, return pooled applications to their pool
+				if(sessionPool.hasProfile(poolKeys.get(i))){
+					sessionPool.release(poolKeys.get(i), drivers.get(i));
+				}else{
+					drivers.get(i).quit();
+				}
+			}
+			if(failure instanceof MalformedURLException){
+				throw (MalformedURLException) failure;
+			}
+			if(failure instanceof RuntimeException){
+				throw (RuntimeException) failure;
+			}
+			throw new AppiumLibraryFatalException(failure);
+		}
+		List<String> sessionIds = new ArrayList<String>();
+		for(int i = 0; i < drivers.size(); i++){
+			sessionIds.add(registerApplication(drivers.get(i), applications[3 * i], applications[3 * i + 1], applications[3 * i + 2]));
+		}
+		return sessionIds;
+	}
+	
+	/**
+	 * Makes the library close forgotten applications automatically, so that
+	 * they do not hold their devices until the end of the suite.<br>
+	 * <br>
+	 * Applications no keyword sent a command to for <b>idleTimeout</b> are
+	 * closed in the background. If more than <b>maxApplications</b>
+	 * applications are open, the least recently opened or switched to ones
+	 * are closed. The current application of any thread is never closed.
+	 * Closed applications are logged by the next `Open Application`, `Switch
+	 * Application` or `Close Application`.<br>
+	 * <br>
+	 * 0 (default) disables the idle timeout or the maximum, respectively.
+	 * @param idleTimeout
+	 * 			Idle time after which an application is closed
+	 * @param maxApplications
+	 * 			Maximum number of open applications
+	 */
+	@RobotKeyword
+	@ArgumentNames({"idleTimeout=0","maxApplications=0"})
+	public void setApplicationEvictionPolicy(String idleTimeout, String maxApplications){
+		long idleTimeoutNanos = (long) (Robotframework.timestrToSecs(idleTimeout) * 1000000000L);
+		int maxSessions = Integer.parseInt(maxApplications);
+		if(idleTimeoutNanos < 0 || maxSessions < 0){
+			throw new AppiumLibraryNonFatalException(String.format("Idle timeout and maximum applications must not be negative, but are %s and %s",
+					idleTimeout, maxApplications));
+		}
+		driverCache.setEvictionPolicy(idleTimeoutNanos, maxSessions);
+		logEvictions();
+	}
+	
+	@RobotKeywordOverload
+	public void setApplicationEvictionPolicy(String idleTimeout){
+		setApplicationEvictionPolicy(idleTimeout, "0");
+	}
+	
+	@RobotKeywordOverload
+	public void setApplicationEvictionPolicy(){
+		setApplicationEvictionPolicy("0", "0");
+	}
+	
+	/**
+	 * Logs the applications evicted by the cache since the last call. The
+	 * eviction itself runs in the background, where nothing can be logged.
+	 */
+	protected void logEvictions(){
+		for(String eviction : driverCache.drainEvictions()){
+			logging.info(eviction);
+		}
+	}
+	
+	/**
+	 * Gives every thread running keywords its own current application, for
+	 * tests run in parallel threads of one library instance.<br>
+	 * <br>
+	 * When enabled, `Open Application`, `Switch Application` and `Close
+	 * Application` change the current application of the calling thread only.
+	 * Disabled by default, where all threads share the current application,
+	 * as remote library servers run the keywords of one test on arbitrary
+	 * threads.
+	 * @param enabled
+	 * 			Whether threads have their own current application
+	 */
+	@RobotKeyword
+	@ArgumentNames({"enabled=true"})
+	public void setCurrentApplicationPerThread(String enabled){
+		driverCache.setPerThreadCurrent(Boolean.parseBoolean(enabled));
+	}
+	
+	@RobotKeywordOverload
+	public void setCurrentApplicationPerThread(){
+		setCurrentApplicationPerThread("true");
+	}
+	
+	/**
+	 * Starts monitoring the open applications in the background.<br>
+	 * <br>
+	 * Every application no keyword sent a command to for <b>keepalive</b>
+	 * gets a cheap keepalive command, so that the Appium server does not
+	 * drop its session after its `newCommandTimeout` during long setup or
+	 * non-device steps. <b>keepalive</b> should be well below that timeout.
+	 * Applications whose keepalives fail repeatedly are marked dead, and
+	 * keywords using them fail at once with a clear error instead of after a
+	 * full HTTP timeout.<br>
+	 * <br>
+	 * See `Get Session Health` for the state of the applications.
+	 * @param keepalive
+	 * 			Idle time after which a keepalive is sent
+	 */
+	@RobotKeyword
+	@ArgumentNames({"keepalive=60 seconds"})
+	public void startSessionMonitor(String keepalive){
+		long keepaliveNanos = (long) (Robotframework.timestrToSecs(keepalive) * 1000000000L);
+		if(keepaliveNanos <= 0){
+			throw new AppiumLibraryNonFatalException(String.format("Keepalive interval must be positive, but is %s", keepalive));
+		}
+		sessionMonitor.start(keepaliveNanos);
+	}
+	
+	@RobotKeywordOverload
+	public void startSessionMonitor(){
+		startSessionMonitor("60 seconds");
+	}
+	
+	/**
+	 * Stops the monitor started with `Start Session Monitor`.
+	 */
+	@RobotKeyword
+	public void stopSessionMonitor(){
+		sessionMonitor.stop();
+	}
+	
+	/**
+	 * Logs and returns the health of the open applications: whether the
+	 * application is alive, how long no command was sent to it and the round
+	 * trip time of the last keepalive of `Start Session Monitor`.
+	 * @return One line per application
+	 */
+	@RobotKeyword
+	public String getSessionHealth(){
+		List<SessionIdAliasWebDriverTuple> sessions = new ArrayList<SessionIdAliasWebDriverTuple>(driverCache.getWebDrivers());
+		Collections.sort(sessions, new Comparator<SessionIdAliasWebDriverTuple>(){
+			
+			@Override
+			public int compare(SessionIdAliasWebDriverTuple session1, SessionIdAliasWebDriverTuple session2){
+				return Integer.valueOf(session1.id).compareTo(Integer.valueOf(session2.id));
+			}
+		});
+		StringBuilder health = new StringBuilder();
+		long now = System.nanoTime();
+		for(SessionIdAliasWebDriverTuple session : sessions){
+			if(health.length() > 0){
+				health.append('\n');
+			}
+			health.append(session.alias != null ? String.format("%s (%s)", session.id, session.alias) : session.id);
+			health.append(session.dead ? ": dead (" + session.deadReason + ")" : ": alive");
+			health.append(String.format(", idle %s", Robotframework.secsToTimestr((now - session.lastCommandNanos) / 1000000000.0)));
+			if(session.lastLatencyNanos >= 0){
+				health.append(String.format(", last keepalive %d ms", TimeUnit.NANOSECONDS.toMillis(session.lastLatencyNanos)));
+			}
+		}
+		logging.info(health.toString());
+		return health.toString();
+	}
+	
+	/**
+	 * Sets the file the open applications are saved to and returns the
+	 * previous file.<br>
+	 * <br>
+	 * While set, the session id, remote URL, alias and desired capabilities
+	 * of every open application are kept in the file, so that a later run,
+	 * e.g. while debugging or re-running failed tests, can continue with the
+	 * still running session by `Attach Application`. An empty <b>path</b>
+	 * (default) disables the state file.
+	 * @param path
+	 * 			Path of the state file
+	 * @return The previous path
+	 */
+	@RobotKeyword
+	@ArgumentNames({"path"})
+	public String setSessionStateFile(String path){
+		File oldStateFile = driverCache.getStateFile();
+		driverCache.setStateFile("".equals(path) ? null : new File(path));
+		return oldStateFile != null ? oldStateFile.getPath() : "";
+	}
+	
+	/**
+	 * Attaches to an application left open by an earlier run or opens a new
+	 * one.<br>
+	 * <br>
+	 * The arguments are the same as of `Open Application`. If the state file
+	 * set with `Set Session State File` contains an application with the same
+	 * <b>remoteURL</b>, <b>alias</b> and <b>desiredCaps</b> whose session is
+	 * still alive on the server, the keyword continues with that session
+	 * without creating a new one. The application is not reset, it stays on
+	 * the screen the earlier run left it on. Otherwise a new application is
+	 * opened like by `Open Application`.
+	 * @param remoteURL
+	 * 			The appium server url
+	 * @param alias
+	 * 			Connection alias
+	 * @param desiredCaps
+	 * 			Desired capabilities, with key=value format and spilt by comma
+	 * @return The application index
+	 * @throws MalformedURLException
+	 */
+	@RobotKeyword
+	@ArgumentNames({"remoteURL","alias","desiredCaps"})
+	public String attachApplication(String remoteURL, String alias, String desiredCaps) throws MalformedURLException{
+		DriverCache.PersistedSession persistedSession = findPersistedSession(remoteURL, "".equals(alias) ? null : alias, desiredCaps);
+		if(persistedSession == null){
+			logging.info("No application to attach to, opening a new one");
+			return openApplication(remoteURL, alias, desiredCaps);
+		}
+		String attachSessionId = persistedSession.sessionId;
+		AppiumDriver driver = createApplication(persistedSession.remoteURL, desiredCaps, attachSessionId);
+		driverCache.removePersistedSession(attachSessionId);
+		if(AttachableDrivers.isAttached(driver)){
+			logging.info(String.format("Attached to session %s", attachSessionId));
+			// the earlier run may have left any implicit wait
+			driver.manage().timeouts().implicitlyWait(0, TimeUnit.MILLISECONDS);
+		}else{
+			logging.info(String.format("Session %s is gone, opened a new one", attachSessionId));
+		}
+		return registerApplication(driver, remoteURL, alias, desiredCaps);
+	}
+	
+	/**
+	 * Returns a session of an earlier run in the state file opened with the
+	 * same arguments on one of the servers of the remote URL, or null.
+	 */
+	protected DriverCache.PersistedSession findPersistedSession(String remoteURL, String alias, String desiredCaps){
+		List<String> servers = serverBalancer.getServers(remoteURL);
+		for(DriverCache.PersistedSession persistedSession : driverCache.getPersistedSessions()){
+			if(servers.contains(persistedSession.remoteURL)
+					&& desiredCaps.trim().equals(persistedSession.desiredCaps.trim())
+					&& (alias == null ? persistedSession.alias == null : alias.equals(persistedSession.alias))){
+				return persistedSession;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Sets the maximum number of sessions created on the same Appium server
+	 * at a time and returns the previous value.<br>
+	 * <br>
+	 * This limits `Open Applications` and the application pools of `Register
+	 * Application Pool`, which otherwise could start many sessions on one
+	 * server at once. Default is 1.
+	 * @param maxCreations
+	 * 			Maximum concurrent session creations per server
+	 * @return The previous maximum
+	 */
+	@RobotKeyword
+	@ArgumentNames({"maxCreations"})
+	public String setMaxConcurrentSessionCreations(String maxCreations){
+		int max = Integer.parseInt(maxCreations);
+		if(max < 1){
+			throw new AppiumLibraryNonFatalException(String.format("Maximum session creations must be positive, but is %s", maxCreations));
+		}
+		String oldMaxCreations;
+		synchronized(sessionCreationPermits){
+			oldMaxCreations = Integer.toString(maxConcurrentSessionCreations);
+			maxConcurrentSessionCreations = max;
+			// creations in progress keep their permits, a lower maximum applies once they finish
+			for(ResizableSemaphore permits : sessionCreationPermits.values()){
+				permits.resize(max);
+			}
+		}
+		return oldMaxCreations;
+	}
+	
+	/**
+	 * Returns a warm application of the pool of the server and capabilities,
+	 * or creates a new one. Safe to call from any thread.
+	 */
+	protected AppiumDriver leaseOrCreateApplication(String remoteURL, String desiredCaps) throws MalformedURLException{
+		AppiumDriver driver = sessionPool.lease(SessionPool.toKey(remoteURL, desiredCaps));
+		return driver != null ? driver : createApplication(remoteURL, desiredCaps);
+	}
+	
+	protected String registerApplication(AppiumDriver driver, String remoteURL, String alias, String desiredCaps){
 		logging.debug(String.format("Opened application with session id %s", driver.getSessionId()));
 		if("".equals(alias))
 			alias = null;
-		return driverCache.register(driver, alias);
+		String serverURL = serverBalancer.getServer(driver);
+		String sessionId = driverCache.register(driver, alias, serverURL != null ? serverURL : remoteURL, desiredCaps);
+		logEvictions();
+		String poolKey = SessionPool.toKey(remoteURL, desiredCaps);
+		if(sessionPool.hasProfile(poolKey)){
+			SessionIdAliasWebDriverTuple session = driverCache.getSession(sessionId);
+			session.pool = sessionPool;
+			session.poolKey = poolKey;
+		}
+		return sessionId;
+	}
+	
+	/**
+	 * Sends the commands of applications opened from now on through a shared
+	 * pool of keep-alive HTTP connections.<br>
+	 * <br>
+	 * All applications on the same server then reuse connections instead of
+	 * setting up TCP and TLS for commands again, which saves a visible share
+	 * of the time per keyword on remote device farms. <b>readTimeout</b> is
+	 * the default read timeout of commands, see `Set Http Command Timeout`
+	 * for timeouts of single commands. <b>compression</b> lets the server
+	 * compress responses, which helps with large page sources on slow
+	 * networks. At most <b>maxConnectionsPerServer</b> connections are open
+	 * to each server.<br>
+	 * <br>
+	 * A transport set up by an earlier call is replaced and closed only while
+	 * no applications are open or pooled, as they would send their commands
+	 * through it. Otherwise the keyword fails, close the applications first.
+	 * See `Log Http Transport Statistics` for the state of the pool.
+	 * @param connectTimeout
+	 * 			Timeout for connecting to a server
+	 * @param readTimeout
+	 * 			Timeout for the response of a command
+	 * @param compression
+	 * 			Whether responses may be compressed
+	 * @param maxConnectionsPerServer
+	 * 			Maximum number of connections to a server
+	 */
+	@RobotKeyword
+	@ArgumentNames({"connectTimeout=10 seconds","readTimeout=3 minutes","compression=false","maxConnectionsPerServer=20"})
+	public void usePooledHttpTransport(String connectTimeout, String readTimeout, String compression, String maxConnectionsPerServer){
+		int connectTimeoutMillis = (int) (Robotframework.timestrToSecs(connectTimeout) * 1000);
+		int readTimeoutMillis = (int) (Robotframework.timestrToSecs(readTimeout) * 1000);
+		int maxConnections = Integer.parseInt(maxConnectionsPerServer);
+		if(maxConnections < 1){
+			throw new AppiumLibraryNonFatalException(String.format("Maximum connections must be positive, but is %s", maxConnectionsPerServer));
+		}
+		PooledHttpTransport previousTransport;
+		synchronized(this){
+			previousTransport = httpTransport;
+			if(previousTransport != null){
+				int openApplications = driverCache.getWebDrivers().size();
+				int pooledApplications = sessionPool.getIdleCount();
+				if(openApplications > 0 || pooledApplications > 0){
+					throw new AppiumLibraryNonFatalException(String.format(
+							"The pooled HTTP transport is in use by %d open and %d pooled applications, close them before replacing it",
+							openApplications, pooledApplications));
+				}
+			}
+			httpTransport = new PooledHttpTransport(connectTimeoutMillis, readTimeoutMillis, Boolean.parseBoolean(compression), maxConnections);
+		}
+		if(previousTransport != null){
+			// release its connections instead of leaking the pool
+			previousTransport.close();
+		}
+	}
+	
+	@RobotKeywordOverload
+	public void usePooledHttpTransport(String connectTimeout, String readTimeout, String compression){
+		usePooledHttpTransport(connectTimeout, readTimeout, compression, "20");
+	}
+	
+	@RobotKeywordOverload
+	public void usePooledHttpTransport(String connectTimeout, String readTimeout){
+		usePooledHttpTransport(connectTimeout, readTimeout, "false", "20");
+	}
+	
+	@RobotKeywordOverload
+	public void usePooledHttpTransport(String connectTimeout){
+		usePooledHttpTransport(connectTimeout, "3 minutes", "false", "20");
+	}
+	
+	@RobotKeywordOverload
+	public void usePooledHttpTransport(){
+		usePooledHttpTransport("10 seconds", "3 minutes", "false", "20");
+	}
+	
+	/**
+	 * Sets the read timeout and optionally the connect timeout of a single
+	 * command of the transport of `Use Pooled Http Transport`.<br>
+	 * <br>
+	 * <b>command</b> is the HTTP method and the end of the path of the
+	 * command, e.g. `POST /session` for opening applications, `GET /source`
+	 * for the page source or `POST /elements` for finding elements.
+	 * Without <b>connectTimeout</b> the command keeps the connect timeout of
+	 * the transport.<br>
+	 * <br>
+	 * | Set Http Command Timeout | POST /session | 5 minutes | 30 seconds |
+	 * @param command
+	 * 			HTTP method and end of the path
+	 * @param timeout
+	 * 			Read timeout of the command
+	 * @param connectTimeout
+	 * 			Default=NONE. Optional timeout for connecting to the server.
+	 */
+	@RobotKeyword
+	@ArgumentNames({"command","timeout","connectTimeout=None"})
+	public void setHttpCommandTimeout(String command, String timeout, String connectTimeout){
+		PooledHttpTransport transport = getHttpTransport();
+		int readTimeoutMillis = (int) (Robotframework.timestrToSecs(timeout) * 1000);
+		if(connectTimeout == null || connectTimeout.trim().equalsIgnoreCase("None")){
+			transport.setCommandTimeout(command, readTimeoutMillis);
+		}else{
+			transport.setCommandTimeout(command, (int) (Robotframework.timestrToSecs(connectTimeout) * 1000), readTimeoutMillis);
+		}
+	}
+	
+	@RobotKeywordOverload
+	public void setHttpCommandTimeout(String command, String timeout){
+		setHttpCommandTimeout(command, timeout, null);
+	}
+	
+	/**
+	 * Logs and returns the statistics of the transport of `Use Pooled Http
+	 * Transport`: the number of requests and failed requests and the leased,
+	 * idle and pending connections in total and per server.
+	 * @return The statistics
+	 */
+	@RobotKeyword
+	public String logHttpTransportStatistics(){
+		String statistics = getHttpTransport().toString();
+		logging.info(statistics);
+		return statistics;
+	}
+	
+	/**
+	 * Returns the HTTP transport for new applications, which records the
+	 * commands in the command statistics
+	 */
+	protected HttpClient.Factory getHttpClientFactory(){
+		PooledHttpTransport transport = httpTransport;
+		return commandStatistics.wrap(transport != null ? transport : defaultHttpClientFactory);
+	}
+	
+	/**
+	 * Logs and returns the statistics of the commands sent to the Appium
+	 * servers.<br>
+	 * <br>
+	 * Every command of the applications, like finding an element or getting
+	 * the page source, is recorded with its latency, HTTP status and bytes
+	 * sent and received. The statistics list the commands taking most time
+	 * in total first, with their number, total, average, percentiles and
+	 * maximum latency, errors and bytes, followed by the latencies per
+	 * session. If <b>reset</b> is true, the statistics are reset afterwards.
+	 * @param reset
+	 * 			Whether to reset the statistics
+	 * @return The statistics
+	 */
+	@RobotKeyword
+	@ArgumentNames({"reset=false"})
+	public String logCommandStatistics(String reset){
+		String statistics = commandStatistics.toString();
+		logging.info(statistics);
+		if(Boolean.parseBoolean(reset)){
+			commandStatistics.reset();
+		}
+		return statistics;
+	}
+	
+	@RobotKeywordOverload
+	public String logCommandStatistics(){
+		return logCommandStatistics("false");
+	}
+	
+	/**
+	 * Logs and returns the time spent in the keywords of this library.<br>
+	 * <br>
+	 * Every keyword called from a test is timed, keywords called by other
+	 * keywords of the library are part of the calling keyword. The summary
+	 * lists the keywords taking most time in total first, with their number
+	 * of calls, total, average, percentiles and maximum time, followed by the
+	 * time per application. If <b>reset</b> is true, the statistics are
+	 * reset afterwards.<br>
+	 * <br>
+	 * The timings are not reported anywhere else, so call it in the suite
+	 * teardown to spot slow keywords:<br>
+	 * <br>
+	 * | Suite Teardown | Run Keywords | Log Keyword Timings | AND | Close All Applications |
+	 * @param reset
+	 * 			Whether to reset the statistics
+	 * @return The summary
+	 */
+	@RobotKeyword
+	@ArgumentNames({"reset=false"})
+	public String logKeywordTimings(String reset){
+		KeywordStatistics keywordStatistics = KeywordStatistics.getInstance();
+		String summary = keywordStatistics.toString();
+		logging.info(summary);
+		if(Boolean.parseBoolean(reset)){
+			keywordStatistics.reset();
+		}
+		return summary;
+	}
+	
+	@RobotKeywordOverload
+	public String logKeywordTimings(){
+		return logKeywordTimings("false");
+	}
+	
+	/**
+	 * Resets the statistics of `Log Keyword Timings`.
+	 */
+	@RobotKeyword
+	public void resetKeywordTimings(){
+		KeywordStatistics.getInstance().reset();
+	}
+	
+	/**
+	 * Resets the statistics of `Log Command Statistics`.
+	 */
+	@RobotKeyword
+	public void resetCommandStatistics(){
+		commandStatistics.reset();
+	}
+	
+	/**
+	 * Logs and returns the most recent commands sent to the Appium servers,
+	 * the oldest first, e.g. to see which commands a keyword issued.
+	 * @param count
+	 * 			Number of commands, at most 200
+	 * @return The commands
+	 */
+	@RobotKeyword
+	@ArgumentNames({"count=20"})
+	public String logRecentCommands(String count){
+		StringBuilder commands = new StringBuilder();
+		for(CommandStatistics.CommandRecord commandRecord : commandStatistics.getRecentCommands(Integer.parseInt(count))){
+			if(commands.length() > 0){
+				commands.append('\n');
+			}
+			commands.append(commandRecord);
+		}
+		logging.info(commands.toString());
+		return commands.toString();
+	}
+	
+	@RobotKeywordOverload
+	public String logRecentCommands(){
+		return logRecentCommands("20");
+	}
+	
+	protected PooledHttpTransport getHttpTransport(){
+		PooledHttpTransport transport = httpTransport;
+		if(transport == null){
+			throw new AppiumLibraryNonFatalException("No pooled HTTP transport in use, see Use Pooled Http Transport");
+		}
+		return transport;
+	}
+	
+	/**
+	 * Registers several Appium servers under a name, so that `Open
+	 * Application` and the other keywords opening applications can be given
+	 * `servers:name` as remote URL to open the application on one of them.
+	 * See `Open Application` for how the server is chosen.
+	 * @param name
+	 * 			Name of the servers
+	 * @param remoteURLs
+	 * 			The appium server urls
+	 */
+	@RobotKeyword
+	@ArgumentNames({"name","*remoteURLs"})
+	public void registerAppiumServers(String name, String... remoteURLs) throws MalformedURLException{
+		if(remoteURLs.length == 0){
+			throw new AppiumLibraryNonFatalException("At least one Appium server is required");
+		}
+		for(String remoteURL : remoteURLs){
+			new URL(remoteURL);
+		}
+		serverBalancer.registerServers(name, Arrays.asList(remoteURLs));
+	}
+	
+	/**
+	 * Registers a pool of warm applications for the given Appium server and
+	 * desired capabilities.<br>
+	 * <br>
+	 * <b>size</b> applications are opened in the background. `Open
+	 * Application` with the same <b>remoteURL</b> and <b>desiredCaps</b> then
+	 * leases one of them instead of waiting for a new session, and falls back
+	 * to opening a new one if none is ready. `Close Application` and `Close
+	 * All Applications` return leased applications to the pool, where they
+	 * are cleaned up in the background for the next lease. Applications idle
+	 * for longer than <b>idleTimeout</b> are closed instead of being leased.
+	 * Idle applications are kept alive with a cheap command every 20 seconds,
+	 * so that the Appium server does not drop them after its new command
+	 * timeout, and are checked again when they are leased.<br>
+	 * <br>
+	 * Valid values of <b>cleanup</b> are `reset` (default), which resets the
+	 * application, and `none`, which reuses the application as it is.<br>
+	 * <br>
+	 * Registering the same server and capabilities again replaces the pool.
+	 * @param remoteURL
+	 * 			The appium server url
+	 * @param desiredCaps
+	 * 			Desired capabilities, with key=value format and spilt by comma
+	 * @param size
+	 * 			Number of warm applications
+	 * @param idleTimeout
+	 * 			Maximum idle time of a warm application, 0 to keep it forever
+	 * @param cleanup
+	 * 			Cleanup of returned applications
+	 */
+	@RobotKeyword
+	@ArgumentNames({"remoteURL","desiredCaps","size=1","idleTimeout=10 minutes","cleanup=reset"})
+	public void registerApplicationPool(final String remoteURL, final String desiredCaps, String size, String idleTimeout, String cleanup){
+		int poolSize = Integer.parseInt(size);
+		if(poolSize < 0){
+			throw new AppiumLibraryNonFatalException(String.format("Pool size must not be negative, but is %s", size));
+		}
+		long idleTimeoutNanos = (long) (Robotframework.timestrToSecs(idleTimeout) * 1000000000L);
+		// fail on malformed arguments here rather than in the background
+		createDesiredCapabilities(desiredCaps);
+		try{
+			for(String server : serverBalancer.getServers(remoteURL)){
+				new URL(server);
+			}
+		}catch(MalformedURLException e){
+			throw new AppiumLibraryNonFatalException(e.getMessage());
+		}
+		SessionPool.SessionFactory factory = new SessionPool.SessionFactory(){
+			
+			@Override
+			public AppiumDriver create() throws Exception{
+				return createApplication(remoteURL, desiredCaps);
+			}
+		};
+		sessionPool.register(SessionPool.toKey(remoteURL, desiredCaps), poolSize, idleTimeoutNanos, factory, createSessionCleanup(cleanup));
+		logging.debug(String.format("Registered pool of %d applications for %s", poolSize, remoteURL));
+	}
+	
+	@RobotKeywordOverload
+	public void registerApplicationPool(String remoteURL, String desiredCaps, String size, String idleTimeout){
+		registerApplicationPool(remoteURL, desiredCaps, size, idleTimeout, "reset");
+	}
+	
+	@RobotKeywordOverload
+	public void registerApplicationPool(String remoteURL, String desiredCaps, String size){
+		registerApplicationPool(remoteURL, desiredCaps, size, "10 minutes", "reset");
+	}
+	
+	@RobotKeywordOverload
+	public void registerApplicationPool(String remoteURL, String desiredCaps){
+		registerApplicationPool(remoteURL, desiredCaps, "1", "10 minutes", "reset");
+	}
+	
+	protected SessionPool.SessionCleanup createSessionCleanup(String cleanup){
+		final boolean reset;
+		if("reset".equalsIgnoreCase(cleanup)){
+			reset = true;
+		}else if("none".equalsIgnoreCase(cleanup)){
+			reset = false;
+		}else{
+			throw new AppiumLibraryNonFatalException(String.format("Unknown cleanup '%s', expected reset or none", cleanup));
+		}
+		return new SessionPool.SessionCleanup(){
+			
+			@Override
+			public void cleanup(AppiumDriver webDriver) throws Exception{
+				if(reset){
+					webDriver.resetApp();
+				}
+				webDriver.manage().timeouts().implicitlyWait(0, TimeUnit.MILLISECONDS);
+				ElementFinder.removeSession(webDriver);
+			}
+		};
+	}
+	
+	/**
+	 * Closes the idle applications of all pools registered with `Register
+	 * Application Pool` and removes the pools. Applications leased from a
+	 * pool are closed when they are closed the next time.
+	 */
+	@RobotKeyword
+	public void closeApplicationPools(){
+		logging.debug(String.format("Closing application pools: %s", sessionPool));
+		sessionPool.close();
+	}
+	
+	/**
+	 * Logs the statistics of the application pools, i.e. the number of
+	 * leases answered by a warm application (hits) and the number of
+	 * applications opened because none was ready (misses).
+	 * @return The statistics
+	 */
+	@RobotKeyword
+	public String logApplicationPoolStatistics(){
+		String statistics = sessionPool.toString();
+		logging.info(statistics);
+		return statistics;
 	}
 	
 	protected AppiumDriver createApplication(String remoteURL, String desiredCaps) throws MalformedURLException{
-		DesiredCapabilities desiredCapabilities = createDesiredCapabilities(desiredCaps);
+		return createApplication(remoteURL, desiredCaps, null);
+	}
+	
+	/**
+	 * Creates a new session or attaches to the session with the id, if it is
+	 * not null and still alive.
+	 */
+	protected AppiumDriver createApplication(String remoteURL, String desiredCaps, String attachSessionId) throws MalformedURLException{
+		List<String> servers = serverBalancer.getServers(remoteURL);
+		if(servers.size() == 1){
+			addPendingCreation(servers.get(0), 1);
+			return createApplicationOnServer(servers.get(0), desiredCaps, attachSessionId);
+		}
+		serverBalancer.probe(servers);
+		List<String> rankedServers;
+		synchronized(pendingCreations){
+			// reserve the server before anyone else ranks, so that concurrent
+			// creations spread over the servers
+			rankedServers = serverBalancer.rank(servers, getServerLoads());
+			addPendingCreation(rankedServers.get(0), 1);
+		}
+		WebDriverException lastFailure = null;
+		for(int i = 0; i < rankedServers.size(); i++){
+			String server = rankedServers.get(i);
+			if(i > 0){
+				addPendingCreation(server, 1);
+			}
+			try{
+				return createApplicationOnServer(server, desiredCaps, attachSessionId);
+			}catch(WebDriverException e){
+				// fail over to the next server
+				serverBalancer.markUnhealthy(server);
+				lastFailure = e;
+			}
+		}
+		throw new AppiumLibraryNonFatalException(String.format("Could not open the application on any of the servers %s", servers), lastFailure);
+	}
+	
+	/**
+	 * Returns the number of open applications and sessions being created on
+	 * each server
+	 */
+	protected Map<String, Integer> getServerLoads(){
+		Map<String, Integer> loads = new HashMap<String, Integer>();
+		for(SessionIdAliasWebDriverTuple session : driverCache.getWebDrivers()){
+			if(session.remoteURL != null){
+				Integer load = loads.get(session.remoteURL);
+				loads.put(session.remoteURL, load != null ? load + 1 : 1);
+			}
+		}
+		Map<String, Integer> pending;
+		synchronized(pendingCreations){
+			pending = new HashMap<String, Integer>(pendingCreations);
+		}
+		for(Map.Entry<String, Integer> pendingCreation : pending.entrySet()){
+			Integer load = loads.get(pendingCreation.getKey());
+			loads.put(pendingCreation.getKey(), (load != null ? load : 0) + pendingCreation.getValue());
+		}
+		return loads;
+	}
+	
+	/**
+	 * Creates the session on the server, for which the caller reserved a
+	 * pending creation. The reservation is released in any case.
+	 */
+	protected AppiumDriver createApplicationOnServer(String remoteURL, String desiredCaps, String attachSessionId) throws MalformedURLException{
 		AppiumDriver driver=null;
-		String platformName = (String) desiredCapabilities.asMap().get("platformName");
-		if(platformName.equalsIgnoreCase("ios")){
-			driver = new IOSDriver(new URL(remoteURL), desiredCapabilities);
-		}else if(platformName.equalsIgnoreCase("android")){
-			driver = new AndroidDriver(new URL(remoteURL), desiredCapabilities);
-		}else{
-			throw new AppiumLibraryFatalException(String.format("Only support ios/android platform, but not the platform %s", platformName));
+		try{
+			DesiredCapabilities desiredCapabilities = createDesiredCapabilities(desiredCaps);
+			String platformName = (String) desiredCapabilities.asMap().get("platformName");
+			URL url = new URL(remoteURL);
+			Semaphore permits = getSessionCreationPermits(url);
+			try{
+				permits.acquire();
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new AppiumLibraryFatalException("Interrupted while waiting to create a session on " + remoteURL);
+			}
+			try{
+				if(platformName.equalsIgnoreCase("ios") || platformName.equalsIgnoreCase("android")){
+					driver = AttachableDrivers.create(platformName, url, getHttpClientFactory(), desiredCapabilities, attachSessionId);
+				}else{
+					throw new AppiumLibraryFatalException(String.format("Only support ios/android platform, but not the platform %s", platformName));
+				}
+			}finally{
+				permits.release();
+			}
+		}finally{
+			addPendingCreation(remoteURL, -1);
 		}
+		serverBalancer.recordServer(driver, remoteURL);
 		
 		return driver;
 	}
 	
+	protected void addPendingCreation(String remoteURL, int delta){
+		synchronized(pendingCreations){
+			Integer pending = pendingCreations.get(remoteURL);
+			int newPending = (pending != null ? pending : 0) + delta;
+			if(newPending == 0){
+				pendingCreations.remove(remoteURL);
+			}else{
+				pendingCreations.put(remoteURL, newPending);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the permits for creating sessions on the server of the URL
+	 */
+	protected Semaphore getSessionCreationPermits(URL url){
+		String server = url.getHost().toLowerCase() + ":" + (url.getPort() != -1 ? url.getPort() : url.getDefaultPort());
+		ResizableSemaphore permits = sessionCreationPermits.get(server);
+		if(permits == null){
+			synchronized(sessionCreationPermits){
+				permits = sessionCreationPermits.get(server);
+				if(permits == null){
+					permits = new ResizableSemaphore(maxConcurrentSessionCreations);
+					sessionCreationPermits.put(server, permits);
+				}
+			}
+		}
+		return permits;
+	}
+	
 	protected DesiredCapabilities createDesiredCapabilities(String desiredCaps){
 		DesiredCapabilities cap = new DesiredCapabilities();
 		String[] keyValues = desiredCaps.split(",");
@@ -153,6 +1212,7 @@ public class ApplicationManagement extends RunOnFailureKeywordsAdapter{
 	@RobotKeyword
 	@ArgumentNames({"indexOrAlias"})
 	public String switchApplication(String indexOrAlias){
+		logEvictions();
 		String oldIndex = driverCache.getCurrentSessionId();
 		driverCache.switchApplication(indexOrAlias);
 		return oldIndex;
@@ -165,6 +1225,9 @@ public class ApplicationManagement extends RunOnFailureKeywordsAdapter{
 	public void resetApplication(){
 		AppiumDriver driver= driverCache.getCurrent();
 		driver.resetApp();
+		// the reset returns to the native context
+		ElementFinder.invalidateContext(driver);
+		invalidateCaches();
 	}
 	
 	/**
@@ -212,12 +1275,74 @@ public class ApplicationManagement extends RunOnFailureKeywordsAdapter{
 		return logSource("INFO");
 	}
 	
+	/**
+	 * Sets the implicit wait used by the Appium server and returns the
+	 * previous value.<br>
+	 * <br>
+	 * While set, keywords acting on an element let the server wait up to
+	 * <b>seconds</b> for the element to appear, and `Wait Until Page Contains
+	 * Element` lets the server wait for its whole timeout with a single
+	 * request instead of polling. This saves many round trips to remote
+	 * devices. Checks for absent elements, like `Page Should Not Contain
+	 * Element` and `Wait Until Page Not Contain Element`, still poll
+	 * with an implicit wait of 0.<br>
+	 * <br>
+	 * A value of 0 (default) disables waiting on the server.
+	 * @param seconds
+	 * 			Implicit wait, e.g. 10 seconds
+	 * @return The previous implicit wait
+	 */
+	@RobotKeyword
+	@ArgumentNames({"seconds"})
+	public String setAppiumImplicitWait(String seconds){
+		String oldImplicitWait = Robotframework.secsToTimestr(implicitWait);
+		implicitWait = Robotframework.timestrToSecs(seconds);
+		return oldImplicitWait;
+	}
+	
+	/**
+	 * Sets the maximum age of the page source snapshot and returns the
+	 * previous value.<br>
+	 * <br>
+	 * While enabled, `Page Should Contain Text`, `Page Should Contain Element`,
+	 * their negations and the waiting keywords answer from one parsed and
+	 * indexed page source instead of sending one request per check. The
+	 * snapshot is taken again once it is older than <b>maxAge</b> and after
+	 * every keyword that might change the screen. Element checks that can not
+	 * be answered from the page source, for example ios=, android= and css=
+	 * locators, are still sent to the server.<br>
+	 * <br>
+	 * A <b>maxAge</b> of 0 (default) disables snapshots.
+	 * @param maxAge
+	 * 			Maximum snapshot age, e.g. 1 second
+	 * @return The previous maximum age
+	 */
+	@RobotKeyword
+	@ArgumentNames({"maxAge"})
+	public String setPageSnapshotMaxAge(String maxAge){
+		String oldMaxAge = Robotframework.secsToTimestr(pageSnapshotMaxAge);
+		pageSnapshotMaxAge = Robotframework.timestrToSecs(maxAge);
+		return oldMaxAge;
+	}
+	
+	/**
+	 * Takes a new page source snapshot of the current application on demand
+	 * and returns its source.<br>
+	 * See `Set Page Snapshot Max Age`.
+	 * @return The page info with xml format
+	 */
+	@RobotKeyword
+	public String refreshPageSnapshot(){
+		return takePageSnapshot(driverCache.getCurrentSession()).getSource();
+	}
+	
 	/**
 	 * Goes one step backward in the browser history.
 	 */
 	@RobotKeyword
 	public void goBack(){
 		driverCache.getCurrent().navigate().back();
+		invalidateCaches();
 	}
 	
 	/**
@@ -226,6 +1351,7 @@ public class ApplicationManagement extends RunOnFailureKeywordsAdapter{
 	@RobotKeyword
 	public void lock(){
 		driverCache.getCurrent().lockScreen(0);
+		invalidateCaches();
 	}
 	
 	/**
@@ -239,6 +1365,7 @@ public class ApplicationManagement extends RunOnFailureKeywordsAdapter{
 	public void backgroundApp(String seconds){
 		int sec = Integer.parseInt(seconds);
 		driverCache.getCurrent().runAppInBackground(sec);
+		invalidateCaches();
 	}
 	
 	@RobotKeywordOverload
@@ -252,6 +1379,7 @@ public class ApplicationManagement extends RunOnFailureKeywordsAdapter{
 	@RobotKeyword
 	public void portrait(){
 		driverCache.getCurrent().rotate(ScreenOrientation.PORTRAIT);
+		invalidateCaches();
 	}
 	
 	/**
@@ -260,6 +1388,7 @@ public class ApplicationManagement extends RunOnFailureKeywordsAdapter{
 	@RobotKeyword
 	public void landscape(){
 		driverCache.getCurrent().rotate(ScreenOrientation.LANDSCAPE);
+		invalidateCaches();
 	}
 	
 	/**
@@ -288,7 +1417,10 @@ public class ApplicationManagement extends RunOnFailureKeywordsAdapter{
 	@RobotKeyword
 	@ArgumentNames({"contextName"})
 	public void switchToContext(String contextName){
-		driverCache.getCurrent().context(contextName);
+		AppiumDriver driver = driverCache.getCurrent();
+		driver.context(contextName);
+		ElementFinder.invalidateContext(driver);
+		invalidateCaches();
 	}
 	
 	/**
@@ -300,5 +1432,6 @@ public class ApplicationManagement extends RunOnFailureKeywordsAdapter{
 	@ArgumentNames({"url"})
 	public void goToUrl(String url){
 		driverCache.getCurrent().get(url);
+		invalidateCaches();
 	}	
 }
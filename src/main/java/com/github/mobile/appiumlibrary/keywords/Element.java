@@ -6,7 +6,10 @@ import java.util.List;
 import java.util.Map;
 
 import io.appium.java_client.AppiumDriver;
+import io.appium.java_client.android.AndroidDriver;
 
+import org.openqa.selenium.StaleElementReferenceException;
+import org.openqa.selenium.WebDriverException;
 import org.openqa.selenium.WebElement;
 import org.robotframework.javalib.annotation.ArgumentNames;
 import org.robotframework.javalib.annotation.Autowired;
@@ -15,8 +18,15 @@ import org.robotframework.javalib.annotation.RobotKeywordOverload;
 import org.robotframework.javalib.annotation.RobotKeywords;
 
 import com.github.mobile.appiumlibrary.AppiumLibraryFatalException;
+import com.github.mobile.appiumlibrary.AppiumLibraryNonFatalException;
 import com.github.mobile.appiumlibrary.RunOnFailureKeywordsAdapter;
+import com.github.mobile.appiumlibrary.locators.CompiledLocator;
+import com.github.mobile.appiumlibrary.locators.ElementCache;
 import com.github.mobile.appiumlibrary.locators.ElementFinder;
+import com.github.mobile.appiumlibrary.locators.ElementFinder.FilterMode;
+import com.github.mobile.appiumlibrary.locators.PageSnapshot;
+import com.github.mobile.appiumlibrary.locators.PageSnapshot.SnapshotNode;
+import com.github.mobile.appiumlibrary.utils.Python;
 
 @RobotKeywords
 public class Element extends RunOnFailureKeywordsAdapter{
@@ -28,6 +38,11 @@ public class Element extends RunOnFailureKeywordsAdapter{
 	
 	private ElementFinder elementFinder = new ElementFinder();
 	
+	/**
+	 * Reuse element handles until the screen changes
+	 */
+	protected boolean elementCacheEnabled = false;
+	
 	//**************************
 	//Keywords method
 	//*************************
@@ -49,7 +64,15 @@ public class Element extends RunOnFailureKeywordsAdapter{
 	@ArgumentNames({"locator"})
 	public void clickElement(String locator){
 		logging.info(String.format("Clicking element '%s'.", locator));
-		elementFind(locator, true, true).get(0).click();
+		withElement(locator, new ElementAction<Void>() {
+
+			@Override
+			public Void perform(WebElement element) {
+				element.click();
+				return null;
+			}
+		});
+		applicationManage.invalidateCaches();
 	}
 	
 	/**
@@ -125,6 +148,7 @@ public class Element extends RunOnFailureKeywordsAdapter{
 	public void hideKeyboard(){
 		AppiumDriver driver = applicationManage.getCurrentDriver();
 		driver.hideKeyboard();
+		applicationManage.invalidateCaches();
 	}
 	
 	/**
@@ -140,7 +164,8 @@ public class Element extends RunOnFailureKeywordsAdapter{
 	@RobotKeyword
 	@ArgumentNames({"text","loglevel=INFO"})
 	public void pageShouldContainText(String text, String loglevel){
-		String source = applicationManage.logSource(loglevel);
+		String source = applicationManage.getSnapshotSource();
+		logging.log(source, loglevel.toUpperCase());
 		if(!source.contains(text)){
 			throw new AppiumLibraryFatalException(String.format("Page should have contained text '%s', but it did not", text));
 		}
@@ -166,7 +191,8 @@ public class Element extends RunOnFailureKeywordsAdapter{
 	@RobotKeyword
 	@ArgumentNames({"text","loglevel=INFO"})
 	public void pageShouldNotContainText(String text, String loglevel){
-		String source = applicationManage.logSource(loglevel);
+		String source = applicationManage.getSnapshotSource();
+		logging.log(source, loglevel.toUpperCase());
 		if(source.contains(text)){
 			throw new AppiumLibraryFatalException(String.format("Page should not have contained text '%s', but it did not", text));
 		}
@@ -205,6 +231,54 @@ public class Element extends RunOnFailureKeywordsAdapter{
 		pageShouldContainElement(locator, "INFO");
 	}
 	
+	/**
+	 * Verifies that current page contains all of the `locators` elements.<br>
+	 * All locators are resolved in one pass: locators that can be answered
+	 * from the page source are checked against a single snapshot, the others
+	 * are sent to the server. The result of every locator is
+	 * logged and the keyword fails listing all elements that were not found.<br>
+	 * If this keyword fails, it automatically logs the page source.
+	 * @param locators
+	 * 			Element locators
+	 */
+	@RobotKeyword
+	@ArgumentNames({"*locators"})
+	public void pageShouldContainElements(String... locators){
+		AppiumDriver driver = applicationManage.getCurrentDriver();
+		List<CompiledLocator> compiledLocators = new ArrayList<CompiledLocator>(locators.length);
+		boolean snapshotSupported = false;
+		for(String locator : locators){
+			CompiledLocator compiledLocator = ElementFinder.getLocatorCache().get(locator, null);
+			compiledLocators.add(compiledLocator);
+			snapshotSupported |= ElementFinder.isSnapshotSupported(compiledLocator);
+		}
+		// the page source only pays off if it answers at least one locator
+		PageSnapshot snapshot = null;
+		if(applicationManage.isPageSnapshotEnabled()){
+			snapshot = applicationManage.getPageSnapshot();
+		}else if(snapshotSupported){
+			snapshot = PageSnapshot.parse(driver.getPageSource(), driver instanceof AndroidDriver);
+		}
+		
+		applicationManage.applyImplicitWait(0);
+		List<Integer> counts = ElementFinder.countAll(driver, compiledLocators, snapshot);
+		List<String> missing = new ArrayList<String>();
+		for(int i = 0; i < locators.length; i++){
+			if(counts.get(i) > 0){
+				logging.info(String.format("Current page contains element '%s'.", locators[i]));
+			}else{
+				logging.info(String.format("Current page does not contain element '%s'.", locators[i]));
+				missing.add(locators[i]);
+			}
+		}
+		
+		if(missing.size() > 0){
+			logging.log(snapshot != null ? snapshot.getSource() : driver.getPageSource(), "INFO");
+			throw new AppiumLibraryFatalException(String.format("Page should have contained elements '%s' but it did not",
+					Python.join("', '", missing)));
+		}
+	}
+	
 	/**
 	 * Verifies that current page not contains `locator` element.<br>
 	 * If this keyword fails, it automatically logs the page source
@@ -243,8 +317,7 @@ public class Element extends RunOnFailureKeywordsAdapter{
 	@RobotKeyword
 	@ArgumentNames({"locator", "loglevel=INFO"})
 	public void elementShouldBeDisabled(String locator, String loglevel){
-		WebElement element = elementFind(locator, true, true).get(0);
-		if(element.isEnabled()){
+		if(isElementEnabled(locator)){
 			applicationManage.logSource(loglevel);
 			throw new AppiumLibraryFatalException(String.format("Element '%s' should be disabled but it did not", locator));
 		}
@@ -268,8 +341,7 @@ public class Element extends RunOnFailureKeywordsAdapter{
 	@RobotKeyword
 	@ArgumentNames({"locator", "loglevel=INFO"})
 	public void elementShouldBeEnabled(String locator, String loglevel){
-		WebElement element = elementFind(locator, true, true).get(0);
-		if(!element.isEnabled()){
+		if(!isElementEnabled(locator)){
 			applicationManage.logSource(loglevel);
 			throw new AppiumLibraryFatalException(String.format("Element '%s' should be enabled but it did not", locator));
 		}
@@ -291,9 +363,9 @@ public class Element extends RunOnFailureKeywordsAdapter{
 	@RobotKeyword
 	@ArgumentNames({"locator", "expected"})
 	public void elementNameShouldBe(String locator, String expected){
-		WebElement element = elementFind(locator, true, true).get(0);
-		if(!expected.equals(element.getAttribute("name"))){
-			throw new AppiumLibraryFatalException(String.format("Element '%s' name should be '%s' but is '%s'", locator, expected, element.getAttribute("name")));
+		String name = elementGetAttribute(locator, "name");
+		if(!expected.equals(name)){
+			throw new AppiumLibraryFatalException(String.format("Element '%s' name should be '%s' but is '%s'", locator, expected, name));
 		}
 		
 		logging.info(String.format("Element '%s' name is '%s'", locator, expected));
@@ -310,9 +382,9 @@ public class Element extends RunOnFailureKeywordsAdapter{
 	@RobotKeyword
 	@ArgumentNames({"locator", "attribute"})
 	public String getElementAttribute(String locator, String attribute){
-		WebElement element = elementFind(locator, true, true).get(0);
-		logging.info(String.format("Element '%s' attribute is '%s'", locator, element.getAttribute(attribute)));
-		return element.getAttribute(attribute);
+		String value = elementGetAttribute(locator, attribute);
+		logging.info(String.format("Element '%s' attribute is '%s'", locator, value));
+		return value;
 	}
 	
 	/**
@@ -325,15 +397,111 @@ public class Element extends RunOnFailureKeywordsAdapter{
 	@RobotKeyword
 	@ArgumentNames({"locator", "expected"})
 	public void elementValueShouldBe(String locator, String expected){
-		WebElement element = elementFind(locator, true, true).get(0);
-		if(!expected.equals(element.getAttribute("value"))){
-			throw new AppiumLibraryFatalException(String.format("Element '%s' value should be '%s' but is '%s'", locator, expected, element.getAttribute("value")));
+		String value = elementGetAttribute(locator, "value");
+		if(!expected.equals(value)){
+			throw new AppiumLibraryFatalException(String.format("Element '%s' value should be '%s' but is '%s'", locator, expected, value));
+		}
+	}
+	
+	/**
+	 * Adds a custom location strategy to the current application, based on a
+	 * JavaScript function that returns the matching elements.<br>
+	 * <br>
+	 * Locators of the form `strategyName=criteria` are passed to the function
+	 * as `arguments[0]`, or split by the optional `delimiter` into several
+	 * arguments. Custom strategies only work in web contexts and apply to the
+	 * application that was current when they were added.<br>
+	 * <br>
+	 * If `install` is true, the function is installed once per page as global
+	 * function and every lookup only sends a short call of it. The function is
+	 * installed again automatically after navigating to another page. This
+	 * avoids sending long function definitions inside wait loops.
+	 * @param strategyName
+	 * 			Name of the strategy, used as locator prefix
+	 * @param functionDefinition
+	 * 			Body of a JavaScript function returning an element or a list of elements
+	 * @param delimiter
+	 * 			Default=NONE. Optional delimiter to split the criteria by
+	 * @param install
+	 * 			true/false install the function in the page (default=false)
+	 */
+	@RobotKeyword
+	@ArgumentNames({"strategyName", "functionDefinition", "delimiter=None", "install=false"})
+	public void addLocationStrategy(String strategyName, String functionDefinition, String delimiter, String install){
+		ElementFinder.addLocationStrategy(applicationManage.getCurrentDriver(), strategyName, functionDefinition,
+				delimiter, Boolean.parseBoolean(install));
+	}
+	
+	@RobotKeywordOverload
+	public void addLocationStrategy(String strategyName, String functionDefinition, String delimiter){
+		addLocationStrategy(strategyName, functionDefinition, delimiter, "false");
+	}
+	
+	@RobotKeywordOverload
+	public void addLocationStrategy(String strategyName, String functionDefinition){
+		addLocationStrategy(strategyName, functionDefinition, null);
+	}
+	
+	/**
+	 * Sets how elements are filtered by their tag and returns the previous
+	 * mode.<br>
+	 * <br>
+	 * <b>client</b> (default) checks the tag and the tag constraints of every
+	 * matched element with separate requests. <b>server</b> compiles them into
+	 * the XPath or UiSelector query where possible. Otherwise all matched
+	 * elements are checked with a single script call in web contexts or
+	 * against a single page source snapshot in native contexts.
+	 * @param mode
+	 * 			client or server
+	 * @return The previous filter mode
+	 */
+	@RobotKeyword
+	@ArgumentNames({"mode"})
+	public String setElementFilterMode(String mode){
+		FilterMode oldMode = ElementFinder.getFilterMode();
+		try{
+			ElementFinder.setFilterMode(FilterMode.valueOf(mode.trim().toUpperCase()));
+		}catch(IllegalArgumentException e){
+			throw new AppiumLibraryNonFatalException(String.format("Element filter mode '%s' is invalid, use client or server", mode));
 		}
+		return oldMode.name().toLowerCase();
 	}
+	
+	/**
+	 * Logs and returns the statistics of the element cache of the current
+	 * application.<br>
+	 * The element cache is enabled with the <b>elementCache</b> library
+	 * import argument.
+	 * @return The number of hits, misses and invalidations and the hit rate
+	 */
+	@RobotKeyword
+	public String logElementCacheStatistics(){
+		ElementCache elementCache = applicationManage.getElementCache();
+		String statistics = elementCache != null ? elementCache.toString() : "No open application";
+		if(!elementCacheEnabled){
+			statistics += " (element cache disabled)";
+		}
+		logging.info(String.format("Element cache: %s", statistics));
+		return statistics;
+	}
+	
 	//***************************
 	//Internal Method
 	//***************************
 	
+	protected static interface ElementAction<T> {
+
+		T perform(WebElement element);
+	}
+	
+	public boolean isElementCacheEnabled(){
+		return elementCacheEnabled;
+	}
+	
+	public void setElementCacheEnabled(boolean elementCacheEnabled){
+		this.elementCacheEnabled = elementCacheEnabled;
+	}
+	
 	protected boolean isIndex(String indexOrName){
 		if(indexOrName.startsWith("index="))
 			return true;
@@ -345,6 +513,7 @@ public class Element extends RunOnFailureKeywordsAdapter{
 		AppiumDriver driver = applicationManage.getCurrentDriver();
 		WebElement element = driver.findElementByName(name);
 		element.click();
+		applicationManage.invalidateCaches();
 	}
 	
 	protected List<WebElement> findElementsByClassName(String className){
@@ -389,16 +558,29 @@ public class Element extends RunOnFailureKeywordsAdapter{
 		WebElement element = findElementByClassName(className, indexOrName);
 		logging.info(String.format("Clicking element '%s'.", element.getText()));
 		element.click();
+		applicationManage.invalidateCaches();
 	}
 	
 	protected void elementClearTextByLocator(String locator){
-		WebElement element = elementFind(locator, true, true).get(0);
-		element.clear();
+		withElement(locator, new ElementAction<Void>() {
+
+			@Override
+			public Void perform(WebElement element) {
+				element.clear();
+				return null;
+			}
+		});
 	}
 	
-	protected void elementInputTextByLocator(String locator, String text){
-		WebElement element = elementFind(locator, true, true).get(0);
-		element.sendKeys(text);
+	protected void elementInputTextByLocator(String locator, final String text){
+		withElement(locator, new ElementAction<Void>() {
+
+			@Override
+			public Void perform(WebElement element) {
+				element.sendKeys(text);
+				return null;
+			}
+		});
 	}
 	
 	protected void elementInputTextByClassName(String className, String indexOrName, String text){
@@ -408,13 +590,72 @@ public class Element extends RunOnFailureKeywordsAdapter{
 	}
 	
 	protected void elementInputValueByLocator(String locator, String text){
-		WebElement element = elementFind(locator, true, true).get(0);
-		element.sendKeys(text);;
+		elementInputTextByLocator(locator, text);
+	}
+	
+	protected boolean isElementEnabled(String locator){
+		return withElement(locator, new ElementAction<Boolean>() {
+
+			@Override
+			public Boolean perform(WebElement element) {
+				return element.isEnabled();
+			}
+		});
+	}
+	
+	protected String elementGetAttribute(String locator, final String attribute){
+		return withElement(locator, new ElementAction<String>() {
+
+			@Override
+			public String perform(WebElement element) {
+				return element.getAttribute(attribute);
+			}
+		});
+	}
+	
+	/**
+	 * Performs the action on the first element matching the locator. If the
+	 * element handle was taken from the element cache and turned stale, the
+	 * cache is invalidated and the element is looked up again.
+	 */
+	protected <T> T withElement(String locator, ElementAction<T> action){
+		try{
+			return action.perform(elementFind(locator, true, true).get(0));
+		}catch(StaleElementReferenceException e){
+			if(!elementCacheEnabled){
+				throw e;
+			}
+			logging.debug(String.format("Cached element '%s' is stale, looking it up again.", locator));
+			applicationManage.invalidateCaches();
+			return action.perform(elementFind(locator, true, true).get(0));
+		}
+	}
+	
+	/**
+	 * Returns the attribute of the first matching element without waiting, or
+	 * null if no element matches.
+	 */
+	protected String getAttributeIfPresent(String locator, String attribute){
+		AppiumDriver driver = applicationManage.getCurrentDriver();
+		applicationManage.applyImplicitWait(0);
+		List<WebElement> elements = elementFinder.find(driver, ElementFinder.getLocatorCache().get(locator, null), true);
+		return elements.size() > 0 ? elements.get(0).getAttribute(attribute) : null;
 	}
 	
 	protected List<WebElement> elementFind(String locator, boolean firstOnly, boolean required, String tag){
 		AppiumDriver driver = applicationManage.getCurrentDriver();
-		List<WebElement> elements = elementFinder.find(driver, locator, tag);
+		CompiledLocator compiledLocator = ElementFinder.getLocatorCache().get(locator, tag);
+		ElementCache elementCache = elementCacheEnabled ? applicationManage.getElementCache() : null;
+		List<WebElement> elements = elementCache != null ? elementCache.get(compiledLocator) : null;
+		if(elements == null){
+			// let the server wait for elements an action needs
+			applicationManage.applyImplicitWait(required ? applicationManage.getImplicitWait() : 0);
+			// the cache must hold all elements, so only short-circuit without it
+			elements = elementFinder.find(driver, compiledLocator, firstOnly && elementCache == null);
+			if(elementCache != null && elements.size() > 0){
+				elementCache.put(compiledLocator, elements);
+			}
+		}
 		if(required && elements.size()==0){
 			throw new AppiumLibraryFatalException(String.format("Element locator %s did not match any elements.", locator));
 		}
@@ -433,14 +674,48 @@ public class Element extends RunOnFailureKeywordsAdapter{
 	}
 	
 	protected boolean isTextPresent(String text){
+		if(applicationManage.isPageSnapshotEnabled()){
+			return applicationManage.getPageSnapshot().containsText(text);
+		}
 		String source = applicationManage.getSource();
 		return source.contains(text);
 	}
 	
 	protected boolean isElementPresent(String locator){
 		AppiumDriver driver = applicationManage.getCurrentDriver();
-		List<WebElement> elements = elementFinder.find(driver, locator);
+		CompiledLocator compiledLocator = ElementFinder.getLocatorCache().get(locator, null);
+		if(applicationManage.isPageSnapshotEnabled()){
+			List<SnapshotNode> nodes = ElementFinder.findNodes(applicationManage.getPageSnapshot(), compiledLocator);
+			if(nodes != null){
+				return nodes.size()>0;
+			}
+		}
+		applicationManage.applyImplicitWait(0);
+		List<WebElement> elements = elementFinder.find(driver, compiledLocator);
 		
 		return elements.size()>0;
 	}
+	
+	/**
+	 * Checks if the element is present, letting the server wait up to
+	 * `serverWait` seconds for it to appear. The previous implicit wait is
+	 * restored afterwards.
+	 */
+	protected boolean isElementPresent(String locator, double serverWait){
+		AppiumDriver driver = applicationManage.getCurrentDriver();
+		CompiledLocator compiledLocator = ElementFinder.getLocatorCache().get(locator, null);
+		double implicitWait = applicationManage.getAppliedImplicitWait();
+		applicationManage.applyImplicitWait(serverWait);
+		try{
+			return elementFinder.find(driver, compiledLocator, true).size()>0;
+		}finally{
+			if(!Double.isNaN(implicitWait)){
+				try{
+					applicationManage.applyImplicitWait(implicitWait);
+				}catch(WebDriverException e){
+					// left unknown and sent again before the next lookup
+				}
+			}
+		}
+	}
 }
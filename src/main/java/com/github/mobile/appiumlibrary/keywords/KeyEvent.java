@@ -46,6 +46,7 @@ public class KeyEvent extends RunOnFailureKeywordsAdapter{
 				android.pressKeyCode(key, meta);
 			else
 				android.pressKeyCode(key);
+			applicationManage.invalidateCaches();
 		}else{
 			throw new AppiumLibraryFatalException("This keyword only support android platform");
 		}
@@ -13,6 +13,7 @@ import org.robotframework.javalib.annotation.RobotKeywords;
 
 import com.github.mobile.appiumlibrary.AppiumLibraryFatalException;
 import com.github.mobile.appiumlibrary.RunOnFailureKeywordsAdapter;
+import com.github.mobile.appiumlibrary.keywords.Element.ElementAction;
 
 @RobotKeywords
 public class Touch extends RunOnFailureKeywordsAdapter{
@@ -30,9 +31,16 @@ public class Touch extends RunOnFailureKeywordsAdapter{
 	@RobotKeyword
 	@ArgumentNames({"locator"})
 	public void zoom(String locator){
-		AppiumDriver driver = applicationManage.getCurrentDriver();
-		WebElement ele = element.elementFind(locator, true, true).get(0);
-		driver.zoom(ele);
+		final AppiumDriver driver = applicationManage.getCurrentDriver();
+		element.withElement(locator, new ElementAction<Void>() {
+
+			@Override
+			public Void perform(WebElement ele) {
+				driver.zoom(ele);
+				return null;
+			}
+		});
+		applicationManage.invalidateCaches();
 	}
 	
 	/**
@@ -41,9 +49,16 @@ public class Touch extends RunOnFailureKeywordsAdapter{
 	@RobotKeyword
 	@ArgumentNames({"locator"})
 	public void pinch(String locator){
-		AppiumDriver driver = applicationManage.getCurrentDriver();
-		WebElement ele = element.elementFind(locator, true, true).get(0);
-		driver.pinch(ele);
+		final AppiumDriver driver = applicationManage.getCurrentDriver();
+		element.withElement(locator, new ElementAction<Void>() {
+
+			@Override
+			public Void perform(WebElement ele) {
+				driver.pinch(ele);
+				return null;
+			}
+		});
+		applicationManage.invalidateCaches();
 	}
 	
 	/**
@@ -64,6 +79,7 @@ public class Touch extends RunOnFailureKeywordsAdapter{
 	public void swipe(int startX, int startY, int endX, int endY, int duration){
 		AppiumDriver driver = applicationManage.getCurrentDriver();
 		driver.swipe(startX, startY, endX, endY, duration);
+		applicationManage.invalidateCaches();
 	}
 	
 	@RobotKeywordOverload
@@ -80,6 +96,7 @@ public class Touch extends RunOnFailureKeywordsAdapter{
 		AppiumDriver driver = applicationManage.getCurrentDriver();
 		
 		driver.scrollTo(text);
+		applicationManage.invalidateCaches();
 	}
 	
 	/**
@@ -88,10 +105,17 @@ public class Touch extends RunOnFailureKeywordsAdapter{
 	@RobotKeyword
 	@ArgumentNames({"locator"})
 	public void longPress(String locator){
-		AppiumDriver driver = applicationManage.getCurrentDriver();
-		WebElement ele = element.elementFind(locator, true, true).get(0);
-		TouchAction ta = new TouchAction(driver);
-		ta.longPress(ele).perform();
+		final AppiumDriver driver = applicationManage.getCurrentDriver();
+		element.withElement(locator, new ElementAction<Void>() {
+
+			@Override
+			public Void perform(WebElement ele) {
+				TouchAction ta = new TouchAction(driver);
+				ta.longPress(ele).perform();
+				return null;
+			}
+		});
+		applicationManage.invalidateCaches();
 	}
 	
 	/**
@@ -113,6 +137,7 @@ public class Touch extends RunOnFailureKeywordsAdapter{
 				android.longPressKeyCode(key, meta);
 			else
 				android.longPressKeyCode(key);
+			applicationManage.invalidateCaches();
 		}else{
 			throw new AppiumLibraryFatalException("This keyword only support android platform");
 		}
@@ -130,10 +155,17 @@ public class Touch extends RunOnFailureKeywordsAdapter{
 	@RobotKeyword
 	@ArgumentNames({"locator"})
 	public void tap(String locator){
-		AppiumDriver driver = applicationManage.getCurrentDriver();
-		WebElement ele = element.elementFind(locator, true, true).get(0);
-		TouchAction ta = new TouchAction(driver);
-		ta.tap(ele).perform();
+		final AppiumDriver driver = applicationManage.getCurrentDriver();
+		element.withElement(locator, new ElementAction<Void>() {
+
+			@Override
+			public Void perform(WebElement ele) {
+				TouchAction ta = new TouchAction(driver);
+				ta.tap(ele).perform();
+				return null;
+			}
+		});
+		applicationManage.invalidateCaches();
 	}
 }
 
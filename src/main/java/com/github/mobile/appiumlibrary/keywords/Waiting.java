@@ -1,5 +1,24 @@
 package com.github.mobile.appiumlibrary.keywords;
 
+import io.appium.java_client.AppiumDriver;
+import io.appium.java_client.android.AndroidDriver;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
 import org.robotframework.javalib.annotation.ArgumentNames;
 import org.robotframework.javalib.annotation.Autowired;
 import org.robotframework.javalib.annotation.RobotKeyword;
@@ -8,7 +27,17 @@ import org.robotframework.javalib.annotation.RobotKeywords;
 
 import com.github.mobile.appiumlibrary.AppiumLibraryNonFatalException;
 import com.github.mobile.appiumlibrary.RunOnFailureKeywordsAdapter;
+import com.github.mobile.appiumlibrary.locators.CompiledLocator;
+import com.github.mobile.appiumlibrary.locators.ElementFinder;
+import com.github.mobile.appiumlibrary.locators.PageSnapshot;
+import com.github.mobile.appiumlibrary.locators.PageSnapshot.SnapshotNode;
+import com.github.mobile.appiumlibrary.utils.DaemonThreadFactory;
+import com.github.mobile.appiumlibrary.utils.DriverCache.SessionIdAliasWebDriverTuple;
+import com.github.mobile.appiumlibrary.utils.PollPolicy;
+import com.github.mobile.appiumlibrary.utils.Python;
 import com.github.mobile.appiumlibrary.utils.Robotframework;
+import com.github.mobile.appiumlibrary.utils.SourceHash;
+import com.github.mobile.appiumlibrary.utils.WaitStatistics;
 
 @RobotKeywords
 public class Waiting extends RunOnFailureKeywordsAdapter {
@@ -18,6 +47,25 @@ public class Waiting extends RunOnFailureKeywordsAdapter {
 	@Autowired
 	protected Element element;
 	
+	@Autowired
+	protected Logging logging;
+	
+	protected PollPolicy pollPolicy = PollPolicy.parse(PollPolicy.DEFAULT);
+	
+	protected WaitStatistics waitStatistics = new WaitStatistics();
+	
+	/**
+	 * Time a check may exceed the deadline of its wait
+	 */
+	protected static final long COMMAND_GRACE_NANOS = TimeUnit.SECONDS.toNanos(1);
+	
+	/**
+	 * Runs the checks of the waits, so that they can be abandoned at the
+	 * deadline
+	 */
+	protected static final ExecutorService checkExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory(
+			"appiumlibrary-wait"));
+	
 	/**
 	 * Waits until the current page contains <b>text</b>.<br>
 	 * Fails, if the timeout expires, before the text appears. <br>
@@ -28,14 +76,16 @@ public class Waiting extends RunOnFailureKeywordsAdapter {
 	 * 			Default=NONE. Optional timeout interval.
 	 * @param error
 	 * 			Default=NONE. Optional custom error message.
+	 * @param poll
+	 * 			Default=NONE. Optional poll policy, see `Set Poll Policy`.
 	 */
 	@RobotKeyword
-	@ArgumentNames({"text", "timeout=None", "error=None"})
-	public void waitUntilPageContains(final String text, String timeout, String error){
+	@ArgumentNames({"text", "timeout=None", "error=None", "poll=None"})
+	public void waitUntilPageContains(final String text, String timeout, String error, String poll){
 		if (error == null) {
 			error = String.format("Text '%s' did not appear in <TIMEOUT>", text);
 		}
-		waitUntil(timeout, error, new WaitUntilFunction() {
+		waitUntil(timeout, poll, error, new WaitUntilFunction() {
 
 			@Override
 			public boolean isFinished() {
@@ -44,6 +94,11 @@ public class Waiting extends RunOnFailureKeywordsAdapter {
 		});
 	}
 	
+	@RobotKeywordOverload
+	public void waitUntilPageContains(String text, String timeout, String error){
+		waitUntilPageContains(text, timeout, error, null);
+	}
+	
 	@RobotKeywordOverload
 	public void waitUntilPageContains(String text){
 		waitUntilPageContains(text, null);
@@ -66,14 +121,16 @@ public class Waiting extends RunOnFailureKeywordsAdapter {
 	 * 			Default=NONE. Optional timeout interval.
 	 * @param error
 	 * 			Default=NONE. Optional custom error message.
+	 * @param poll
+	 * 			Default=NONE. Optional poll policy, see `Set Poll Policy`.
 	 */
 	@RobotKeyword
-	@ArgumentNames({"text", "timeout=None", "error=None"})
-	public void waitUntilPageNotContain(final String text, String timeout, String error){
+	@ArgumentNames({"text", "timeout=None", "error=None", "poll=None"})
+	public void waitUntilPageNotContain(final String text, String timeout, String error, String poll){
 		if (error == null) {
 			error = String.format("Text '%s' did not disappear in <TIMEOUT>", text);
 		}
-		waitUntil(timeout, error, new WaitUntilFunction() {
+		waitUntil(timeout, poll, error, new WaitUntilFunction() {
 
 			@Override
 			public boolean isFinished() {
@@ -82,14 +139,19 @@ public class Waiting extends RunOnFailureKeywordsAdapter {
 		});
 	}
 	
+	@RobotKeywordOverload
+	public void waitUntilPageNotContain(String text, String timeout, String error){
+		waitUntilPageNotContain(text, timeout, error, null);
+	}
+	
 	@RobotKeywordOverload
 	public void waitUntilPageNotContain(String text){
-		waitUntilPageContains(text, null);
+		waitUntilPageNotContain(text, null);
 	}
 	
 	@RobotKeywordOverload
 	public void waitUntilPageNotContain(String text, String timeout){
-		waitUntilPageContains(text, timeout, null);
+		waitUntilPageNotContain(text, timeout, null);
 	}
 	
 	/**
@@ -106,14 +168,45 @@ public class Waiting extends RunOnFailureKeywordsAdapter {
 	 *            Default=NONE. Optional timeout interval.
 	 * @param error
 	 * 			  Default=NONE. Optional custom error message.
+	 * @param poll
+	 * 			  Default=NONE. Optional poll policy, see `Set Poll Policy`.
 	 */
 	@RobotKeyword
-	@ArgumentNames({"locator", "timeout=None", "error=None"})
-	public void waitUntilPageContainsElement(final String locator, String timeout, String error){
+	@ArgumentNames({"locator", "timeout=None", "error=None", "poll=None"})
+	public void waitUntilPageContainsElement(final String locator, String timeout, String error, String poll){
 		if (error == null) {
 			error = String.format("Element '%s' did not appear in <TIMEOUT>", locator);
 		}
-		waitUntil(timeout, error, new WaitUntilFunction() {
+		if (applicationManage.getImplicitWait() > 0
+				&& ElementFinder.isImplicitWaitSupported(ElementFinder.getLocatorCache().get(locator, null))) {
+			double secs = timeout != null ? Robotframework.timestrToSecs(timeout) : applicationManage.getTimeout();
+			error = error.replace("<TIMEOUT>", Robotframework.secsToTimestr(secs));
+			long start = System.nanoTime();
+			final double serverWait = secs;
+			try {
+				if (callBeforeDeadline(new Callable<Boolean>() {
+
+					@Override
+					public Boolean call() {
+						return element.isElementPresent(locator, serverWait);
+					}
+				}, start + (long) (secs * 1000000000L))) {
+					recordWait(1, start, false);
+					return;
+				}
+			} catch (RuntimeException e) {
+				// Poll for the rest of the timeout
+			} catch (DeadlineExceededException e) {
+				recordWait(1, start, true);
+				throw new AppiumLibraryNonFatalException(String.format("%s, %s", error, e.getMessage()));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				recordWait(1, start, true);
+				throw new AppiumLibraryNonFatalException(String.format("Interrupted: %s", error));
+			}
+			timeout = Robotframework.secsToTimestr(Math.max(secs - (System.nanoTime() - start) / 1e9, 0));
+		}
+		waitUntil(timeout, poll, error, new WaitUntilFunction() {
 
 			@Override
 			public boolean isFinished() {
@@ -122,6 +215,11 @@ public class Waiting extends RunOnFailureKeywordsAdapter {
 		});
 	}
 	
+	@RobotKeywordOverload
+	public void waitUntilPageContainsElement(String locator, String timeout, String error){
+		waitUntilPageContainsElement(locator, timeout, error, null);
+	}
+	
 	@RobotKeywordOverload
 	public void waitUntilPageContainsElement(String locator, String timeout){
 		waitUntilPageContainsElement(locator, timeout, null);
@@ -146,14 +244,16 @@ public class Waiting extends RunOnFailureKeywordsAdapter {
 	 *            Default=NONE. Optional timeout interval.
 	 * @param error
 	 *            Default=NONE. Optional custom error message.
+	 * @param poll
+	 *            Default=NONE. Optional poll policy, see `Set Poll Policy`.
 	 */
 	@RobotKeyword
-	@ArgumentNames({"locator", "timeout=None", "error=None"})
-	public void waitUntilPageNotContainElement(final String locator, String timeout, String error){
+	@ArgumentNames({"locator", "timeout=None", "error=None", "poll=None"})
+	public void waitUntilPageNotContainElement(final String locator, String timeout, String error, String poll){
 		if (error == null) {
 			error = String.format("Element '%s' did not disappear in <TIMEOUT>", locator);
 		}
-		waitUntil(timeout, error, new WaitUntilFunction() {
+		waitUntil(timeout, poll, error, new WaitUntilFunction() {
 
 			@Override
 			public boolean isFinished() {
@@ -162,6 +262,11 @@ public class Waiting extends RunOnFailureKeywordsAdapter {
 		});
 	}
 	
+	@RobotKeywordOverload
+	public void waitUntilPageNotContainElement(String locator, String timeout, String error){
+		waitUntilPageNotContainElement(locator, timeout, error, null);
+	}
+	
 	@RobotKeywordOverload
 	public void waitUntilPageNotContainElement(String locator, String timeout){
 		waitUntilPageNotContainElement(locator, timeout, null);
@@ -171,30 +276,530 @@ public class Waiting extends RunOnFailureKeywordsAdapter {
 	public void waitUntilPageNotContainElement(String locator){
 		waitUntilPageNotContainElement(locator, null);
 	}
+	/**
+	 * Waits until any of the <b>conditions</b> is met and returns the first
+	 * condition that is met.<br>
+	 * <br>
+	 * Conditions are given as:<br>
+	 * <ul>
+	 * <li><b>text:</b><i>text</i> the page contains the text</li>
+	 * <li><b>element:</b><i>locator</i> the page contains the element</li>
+	 * <li><b>attribute:</b><i>locator</i><b>@</b><i>name</i><b>=</b><i>value</i>
+	 * the attribute of the element has the value</li>
+	 * </ul>
+	 * An optional <b>poll:</b><i>policy</i> sets the poll policy of this wait,
+	 * see `Set Poll Policy`.<br>
+	 * <br>
+	 * All conditions are checked against the same page source on every poll,
+	 * so checking several conditions costs about as much as checking one.
+	 * Elements that can not be found in the page source are looked up on the
+	 * server.<br>
+	 * <br>
+	 * Fails, if the timeout expires, before any condition is met.<br>
+	 * <br>
+	 * | ${condition}= | Wait Until Any | 10s | element:id=home | text:Network error |
+	 * | ${condition}= | Wait Until Any | 10s | element:id=home | text:Network error | poll:fast:50ms:5:1s |
+	 * @param timeout
+	 * 			Timeout interval, NONE for the default timeout.
+	 * @param conditions
+	 * 			The conditions to wait for.
+	 * @return The condition that is met
+	 */
+	@RobotKeyword
+	@ArgumentNames({"timeout", "*conditions"})
+	public String waitUntilAny(String timeout, String... conditions){
+		final List<WaitCondition> waitConditions = WaitCondition.parseAll(conditions);
+		String poll = WaitCondition.removePoll(waitConditions);
+		final String[] met = new String[1];
+		waitUntil(toTimeout(timeout), poll, String.format("None of the conditions '%s' was met in <TIMEOUT>",
+				WaitCondition.join(waitConditions)), new WaitUntilFunction() {
+
+			@Override
+			public boolean isFinished() {
+				Tick tick = new Tick();
+				for (WaitCondition waitCondition : waitConditions) {
+					if (isConditionMet(waitCondition, tick)) {
+						met[0] = waitCondition.condition;
+						return true;
+					}
+				}
+				return false;
+			}
+		});
+		logging.info(String.format("Condition '%s' is met.", met[0]));
+		return met[0];
+	}
+	
+	/**
+	 * Waits until all of the <b>conditions</b> are met at the same time.<br>
+	 * <br>
+	 * See `Wait Until Any` for the format of the conditions and the poll
+	 * policy.<br>
+	 * <br>
+	 * Fails, if the timeout expires, before all conditions are met.
+	 * @param timeout
+	 * 			Timeout interval, NONE for the default timeout.
+	 * @param conditions
+	 * 			The conditions to wait for.
+	 */
+	@RobotKeyword
+	@ArgumentNames({"timeout", "*conditions"})
+	public void waitUntilAll(String timeout, String... conditions){
+		final List<WaitCondition> waitConditions = WaitCondition.parseAll(conditions);
+		String poll = WaitCondition.removePoll(waitConditions);
+		waitUntil(toTimeout(timeout), poll, String.format("Not all of the conditions '%s' were met in <TIMEOUT>",
+				WaitCondition.join(waitConditions)), new WaitUntilFunction() {
+
+			@Override
+			public boolean isFinished() {
+				Tick tick = new Tick();
+				for (WaitCondition waitCondition : waitConditions) {
+					if (!isConditionMet(waitCondition, tick)) {
+						return false;
+					}
+				}
+				return true;
+			}
+		});
+	}
+	
+	/**
+	 * Waits until the screen stops changing.<br>
+	 * <br>
+	 * Takes the page source on every poll and returns as soon as <b>count</b>
+	 * successive page sources are equal, for example once an animation or a
+	 * transition finished. This replaces fixed sleeps with the minimum
+	 * necessary delay. The interval between the page sources is given by the
+	 * poll policy, see `Set Poll Policy`.<br>
+	 * <br>
+	 * Parts of the page source matching one of the <b>ignore</b> regular
+	 * expressions are not compared, e.g. clocks or progress indicators.<br>
+	 * <br>
+	 * Fails, if the timeout expires, before the screen is stable.<br>
+	 * <br>
+	 * | Wait Until Screen Is Stable | 10s | 3 | 500ms | text="\\d+:\\d+" |
+	 * @param timeout
+	 * 			Default=NONE. Optional timeout interval.
+	 * @param count
+	 * 			Default=2. Number of equal successive page sources.
+	 * @param poll
+	 * 			Default=NONE. Optional poll policy, see `Set Poll Policy`.
+	 * @param ignore
+	 * 			Regular expressions of parts of the page source to ignore.
+	 */
+	@RobotKeyword
+	@ArgumentNames({"timeout=None", "count=2", "poll=None", "*ignore"})
+	public void waitUntilScreenIsStable(String timeout, String count, String poll, String... ignore){
+		final int stableCount = Integer.parseInt(count.trim());
+		if (stableCount < 2) {
+			throw new AppiumLibraryNonFatalException(String.format("Count must be at least 2, but is %d", stableCount));
+		}
+		final List<Pattern> ignorePatterns = new ArrayList<Pattern>(ignore.length);
+		for (String regex : ignore) {
+			try {
+				ignorePatterns.add(Pattern.compile(regex));
+			} catch (PatternSyntaxException e) {
+				throw new AppiumLibraryNonFatalException(String.format("Invalid ignore pattern '%s': %s", regex, e.getDescription()));
+			}
+		}
+		waitUntil(toTimeout(timeout), toTimeout(poll), "Screen did not become stable in <TIMEOUT>", new WaitUntilFunction() {
+			
+			protected Long lastHash;
+			
+			protected int equalCount;
+
+			@Override
+			public boolean isFinished() {
+				long hash = SourceHash.hash(applicationManage.getSource(), ignorePatterns);
+				if (lastHash != null && lastHash == hash) {
+					equalCount++;
+				} else {
+					equalCount = 1;
+				}
+				lastHash = hash;
+				return equalCount >= stableCount;
+			}
+		});
+		applicationManage.invalidateCaches();
+	}
+	
+	@RobotKeywordOverload
+	public void waitUntilScreenIsStable(String timeout, String count){
+		waitUntilScreenIsStable(timeout, count, null);
+	}
+	
+	@RobotKeywordOverload
+	public void waitUntilScreenIsStable(String timeout){
+		waitUntilScreenIsStable(timeout, "2");
+	}
+	
+	@RobotKeywordOverload
+	public void waitUntilScreenIsStable(){
+		waitUntilScreenIsStable(null);
+	}
+	
+	/**
+	 * Sets the default poll policy of the waiting keywords and returns the
+	 * previous one.<br>
+	 * <br>
+	 * <b>fixed:interval</b> checks the condition at a fixed interval,
+	 * <b>exponential:initial:max</b> doubles the interval after every check up
+	 * to max and <b>fast:interval:count:max</b> checks count times at the
+	 * interval before doubling it up to max. A plain time string is the same as
+	 * a fixed interval. The default is fixed:200ms.<br>
+	 * <br>
+	 * | Set Poll Policy | fast:50ms:5:1s |
+	 * @param policy
+	 * 			The poll policy
+	 * @return The previous poll policy
+	 */
+	@RobotKeyword
+	@ArgumentNames({"policy"})
+	public String setPollPolicy(String policy){
+		String oldPolicy = pollPolicy.toString();
+		pollPolicy = PollPolicy.parse(policy);
+		return oldPolicy;
+	}
+	
+	/**
+	 * Logs and returns the number of checks and the time spent by the waiting
+	 * keywords since the library was imported or the statistics were reset.
+	 * @param reset
+	 * 			true/false reset the statistics after logging them (default=false)
+	 * @return The wait statistics
+	 */
+	@RobotKeyword
+	@ArgumentNames({"reset=false"})
+	public String logWaitStatistics(String reset){
+		String statistics = String.format("Wait statistics: %s", waitStatistics);
+		logging.info(statistics);
+		if(Boolean.parseBoolean(reset)){
+			waitStatistics.reset();
+		}
+		return statistics;
+	}
+	
+	@RobotKeywordOverload
+	public String logWaitStatistics(){
+		return logWaitStatistics("false");
+	}
+	
+	public PollPolicy getDefaultPollPolicy(){
+		return pollPolicy;
+	}
+	
+	public void setDefaultPollPolicy(PollPolicy pollPolicy){
+		this.pollPolicy = pollPolicy;
+	}
+	
+	public WaitStatistics getWaitStatistics(){
+		return waitStatistics;
+	}
+	
 	//*****************************************
 	//** Internal Method
 	//****************************************
 	protected void waitUntil(String timestr, String message, WaitUntilFunction function) {
+		waitUntil(timestr, null, message, function);
+	}
+	
+	protected void waitUntil(String timestr, String poll, String message, final WaitUntilFunction function) {
 		double timeout = timestr != null ? Robotframework.timestrToSecs(timestr) : applicationManage.getTimeout();
+		PollPolicy policy = poll != null ? PollPolicy.parse(poll) : pollPolicy;
 		message = message.replace("<TIMEOUT>", Robotframework.secsToTimestr(timeout));
-		long maxtime = System.currentTimeMillis() + (long) (timeout * 1000);
+		long start = System.nanoTime();
+		long deadline = start + (long) (timeout * 1000000000L);
+		Callable<Boolean> check = new Callable<Boolean>() {
+
+			@Override
+			public Boolean call() {
+				return function.isFinished();
+			}
+		};
+		int polls = 0;
+		RuntimeException lastError = null;
 		for (;;) {
+			polls++;
 			try {
-				if (function.isFinished()) {
+				if (callBeforeDeadline(check, deadline)) {
 					break;
 				}
-			} catch (Throwable t) {
+				lastError = null;
+			} catch (RuntimeException e) {
+				// The condition may fail while the screen changes
+				lastError = e;
+			} catch (DeadlineExceededException e) {
+				recordWait(polls, start, true);
+				throw new AppiumLibraryNonFatalException(String.format("%s, %s", message, e.getMessage()));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				recordWait(polls, start, true);
+				throw new AppiumLibraryNonFatalException(String.format("Interrupted: %s", message));
 			}
-			if (System.currentTimeMillis() > maxtime) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				recordWait(polls, start, true);
+				if (lastError != null) {
+					logging.debug(String.format("Last check failed with: %s", lastError));
+				}
 				throw new AppiumLibraryNonFatalException(message);
 			}
 			try {
-				Thread.sleep(200);
+				// Sleep at most until the deadline, so that the last check
+				// happens when the timeout expires
+				TimeUnit.NANOSECONDS.sleep(Math.min(policy.getDelayNanos(polls), remaining));
 			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				recordWait(polls, start, true);
+				throw new AppiumLibraryNonFatalException(String.format("Interrupted: %s", message));
 			}
 		}
+		recordWait(polls, start, false);
 	}
+	
+	/**
+	 * Runs the callable on a worker thread and waits for it until the deadline
+	 * plus a short grace period, so that a hanging driver command can not
+	 * delay the wait beyond its timeout.<br>
+	 * A check that misses the deadline is interrupted, but a command already
+	 * sent keeps running until the server answers. Until then the next
+	 * keyword may send a second command to the same session, so both can be
+	 * in flight at once. The implicit wait of the session is marked unknown,
+	 * so that it is sent again before the next lookup.
+	 */
+	protected <T> T callBeforeDeadline(final Callable<T> callable, long deadline) throws DeadlineExceededException,
+			InterruptedException {
+		final AtomicReference<Thread> worker = new AtomicReference<Thread>();
+		final AtomicBoolean abandoned = new AtomicBoolean();
+		final SessionIdAliasWebDriverTuple session = applicationManage.getCurrentSession();
+		Future<T> future = checkExecutor.submit(new Callable<T>() {
 
+			@Override
+			public T call() throws Exception {
+				worker.set(Thread.currentThread());
+				// act on the application of the waiting thread
+				applicationManage.bindCurrentSession(session);
+				try {
+					return callable.call();
+				} finally {
+					if (abandoned.get()) {
+						// the check may have changed the implicit wait
+						markImplicitWaitUnknown(session);
+					}
+					applicationManage.bindCurrentSession(null);
+					worker.set(null);
+				}
+			}
+		});
+		try {
+			return future.get(Math.max(deadline - System.nanoTime(), 0) + COMMAND_GRACE_NANOS, TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			Thread thread = worker.get();
+			String command = thread != null ? describeCommand(thread.getStackTrace()) : null;
+			abandon(future, abandoned, session);
+			throw new DeadlineExceededException(command != null ? String.format(
+					"command %s did not return before the deadline", command) : "check did not return before the deadline");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw new AppiumLibraryNonFatalException(e.getCause());
+		} catch (InterruptedException e) {
+			abandon(future, abandoned, session);
+			throw e;
+		}
+	}
+	
+	protected static void abandon(Future<?> future, AtomicBoolean abandoned, SessionIdAliasWebDriverTuple session) {
+		abandoned.set(true);
+		future.cancel(true);
+		markImplicitWaitUnknown(session);
+	}
+	
+	protected static void markImplicitWaitUnknown(SessionIdAliasWebDriverTuple session) {
+		if (session != null) {
+			session.implicitWait = Double.NaN;
+		}
+	}
+	
+	/**
+	 * Returns the driver method a stack is blocked in, i.e. the outermost
+	 * Selenium or Appium frame called by the library.
+	 */
+	protected static String describeCommand(StackTraceElement[] stack) {
+		String command = null;
+		for (StackTraceElement frame : stack) {
+			String className = frame.getClassName();
+			if (className.startsWith("com.github.mobile.appiumlibrary.")) {
+				break;
+			}
+			if (className.startsWith("org.openqa.selenium.") || className.startsWith("io.appium.")) {
+				command = String.format("%s.%s", className.substring(className.lastIndexOf('.') + 1), frame.getMethodName());
+			}
+		}
+		return command;
+	}
+	
+	protected void recordWait(int polls, long start, boolean timedOut) {
+		long nanos = System.nanoTime() - start;
+		waitStatistics.record(polls, nanos, timedOut);
+		logging.debug(String.format("Waited %d ms with %d checks.", TimeUnit.NANOSECONDS.toMillis(nanos), polls));
+	}
+
+	protected static String toTimeout(String timeout) {
+		return timeout == null || timeout.trim().length() == 0 || timeout.trim().equalsIgnoreCase("None") ? null : timeout;
+	}
+	
+	protected boolean isConditionMet(WaitCondition waitCondition, Tick tick) {
+		try {
+			if (waitCondition.type == WaitCondition.TEXT) {
+				return tick.getSnapshot().containsText(waitCondition.value);
+			}
+			CompiledLocator compiledLocator = ElementFinder.getLocatorCache().get(waitCondition.locator, null);
+			List<SnapshotNode> nodes = ElementFinder.findNodes(tick.getSnapshot(), compiledLocator);
+			if (waitCondition.type == WaitCondition.ELEMENT) {
+				return nodes != null ? nodes.size() > 0 : element.isElementPresent(waitCondition.locator);
+			}
+			if (nodes != null && nodes.size() > 0 && nodes.get(0).get(waitCondition.attribute) != null) {
+				return waitCondition.value.equals(nodes.get(0).get(waitCondition.attribute));
+			}
+			if (nodes != null && nodes.size() == 0) {
+				return false;
+			}
+			// Not in the page source or named differently by the server
+			return waitCondition.value.equals(element.getAttributeIfPresent(waitCondition.locator, waitCondition.attribute));
+		} catch (RuntimeException e) {
+			// Other conditions may still be met
+			return false;
+		}
+	}
+	
+	/**
+	 * A single poll of a multi-condition wait. Takes the page source at most
+	 * once, when the first condition needs it.
+	 */
+	protected class Tick {
+		protected PageSnapshot snapshot;
+
+		protected PageSnapshot getSnapshot() {
+			if (snapshot == null) {
+				if (applicationManage.isPageSnapshotEnabled()) {
+					snapshot = applicationManage.getPageSnapshot();
+				} else {
+					AppiumDriver driver = applicationManage.getCurrentDriver();
+					snapshot = PageSnapshot.parse(driver.getPageSource(), driver instanceof AndroidDriver);
+				}
+			}
+			return snapshot;
+		}
+	}
+	
+	/**
+	 * A parsed condition of `Wait Until Any` and `Wait Until All`.
+	 */
+	protected static class WaitCondition {
+		protected static final String TEXT = "text";
+		
+		protected static final String POLL = "poll";
+		
+		protected static final String ELEMENT = "element";
+		
+		protected static final String ATTRIBUTE = "attribute";
+		
+		protected static final Pattern ATTRIBUTE_PATTERN = Pattern.compile("(.+)@([\\w:.-]+)=(.*)", Pattern.DOTALL);
+		
+		protected final String condition;
+		
+		protected String type;
+		
+		protected String locator;
+		
+		protected String attribute;
+		
+		protected String value;
+		
+		protected WaitCondition(String condition) {
+			this.condition = condition;
+			int index = condition.indexOf(':');
+			String criteria = index != -1 ? condition.substring(index + 1) : null;
+			String prefix = index != -1 ? condition.substring(0, index).trim().toLowerCase() : null;
+			if (TEXT.equals(prefix)) {
+				type = TEXT;
+				value = criteria;
+			} else if (ELEMENT.equals(prefix) && criteria.trim().length() > 0) {
+				type = ELEMENT;
+				locator = criteria.trim();
+			} else if (ATTRIBUTE.equals(prefix)) {
+				Matcher matcher = ATTRIBUTE_PATTERN.matcher(criteria);
+				if (matcher.matches()) {
+					type = ATTRIBUTE;
+					locator = matcher.group(1).trim();
+					attribute = matcher.group(2);
+					value = matcher.group(3);
+				}
+			} else if (POLL.equals(prefix) && criteria.trim().length() > 0) {
+				type = POLL;
+				value = criteria.trim();
+			}
+			if (type == null) {
+				throw new AppiumLibraryNonFatalException(String.format("Condition '%s' is invalid, use text:text, "
+						+ "element:locator, attribute:locator@name=value or poll:policy", condition));
+			}
+		}
+		
+		protected static List<WaitCondition> parseAll(String[] conditions) {
+			if (conditions.length == 0) {
+				throw new AppiumLibraryNonFatalException("At least one condition is required");
+			}
+			List<WaitCondition> waitConditions = new ArrayList<WaitCondition>(conditions.length);
+			for (String condition : conditions) {
+				waitConditions.add(new WaitCondition(condition));
+			}
+			return waitConditions;
+		}
+		
+		/**
+		 * Removes the poll policies from the conditions and returns the last
+		 * one or null
+		 */
+		protected static String removePoll(List<WaitCondition> waitConditions) {
+			String poll = null;
+			for (Iterator<WaitCondition> iterator = waitConditions.iterator(); iterator.hasNext();) {
+				WaitCondition waitCondition = iterator.next();
+				if (waitCondition.type == POLL) {
+					poll = waitCondition.value;
+					iterator.remove();
+				}
+			}
+			if (waitConditions.size() == 0) {
+				throw new AppiumLibraryNonFatalException("At least one condition is required");
+			}
+			return poll;
+		}
+		
+		protected static String join(List<WaitCondition> waitConditions) {
+			List<String> conditions = new ArrayList<String>(waitConditions.size());
+			for (WaitCondition waitCondition : waitConditions) {
+				conditions.add(waitCondition.condition);
+			}
+			return Python.join("', '", conditions);
+		}
+	}
+	
+	/**
+	 * A check did not return before the deadline of the wait
+	 */
+	@SuppressWarnings("serial")
+	protected static class DeadlineExceededException extends Exception {
+
+		public DeadlineExceededException(String message) {
+			super(message);
+		}
+	}
+	
 	protected static interface WaitUntilFunction {
 
 		boolean isFinished();
@@ -0,0 +1,79 @@
+package com.github.mobile.appiumlibrary.locators;
+
+import java.util.Collections;
+import java.util.Map;
+
+import com.github.mobile.appiumlibrary.locators.ElementFinder.KeyAttrs;
+import com.github.mobile.appiumlibrary.locators.ElementFinder.Strategy;
+
+/**
+ * Immutable result of parsing a locator and an optional tag. Instances are
+ * created by {@link ElementFinder#compile(String, String)} and shared through
+ * the {@link LocatorCache}, so they must never be modified after creation.
+ */
+public final class CompiledLocator {
+
+	final String locator;
+
+	final String tagName;
+
+	final Strategy strategy;
+
+	final String criteria;
+
+	final String tag;
+
+	final Map<String, String> constraints;
+
+	final KeyAttrs keyAttrs;
+
+	CompiledLocator(String locator, String tagName, Strategy strategy, String criteria, String tag,
+			Map<String, String> constraints, KeyAttrs keyAttrs) {
+		this.locator = locator;
+		this.tagName = tagName;
+		this.strategy = strategy;
+		this.criteria = criteria;
+		this.tag = tag;
+		this.constraints = constraints != null ? Collections.unmodifiableMap(constraints) : null;
+		this.keyAttrs = keyAttrs;
+	}
+
+	public String getLocator() {
+		return locator;
+	}
+
+	public String getCriteria() {
+		return criteria;
+	}
+
+	public String getTag() {
+		return tag;
+	}
+
+	public Map<String, String> getConstraints() {
+		return constraints;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof CompiledLocator)) {
+			return false;
+		}
+		CompiledLocator other = (CompiledLocator) o;
+		return locator.equals(other.locator)
+				&& (tagName == null ? other.tagName == null : tagName.equals(other.tagName));
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * locator.hashCode() + (tagName != null ? tagName.hashCode() : 0);
+	}
+
+	@Override
+	public String toString() {
+		return tagName != null ? String.format("%s (%s)", locator, tagName) : locator;
+	}
+}
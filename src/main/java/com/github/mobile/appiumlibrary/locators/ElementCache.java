@@ -0,0 +1,107 @@
+package com.github.mobile.appiumlibrary.locators;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openqa.selenium.WebElement;
+
+/**
+ * Session scoped cache of the element handles found for compiled locators.
+ * The cache has to be invalidated whenever the screen might have changed.
+ */
+public class ElementCache {
+
+	/**
+	 * The default maximum number of cached locators
+	 */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	/**
+	 * Cached element handles in access order, guarded by this
+	 */
+	protected final LinkedHashMap<CompiledLocator, List<WebElement>> entries;
+
+	protected final AtomicLong hits = new AtomicLong();
+
+	protected final AtomicLong misses = new AtomicLong();
+
+	protected final AtomicLong invalidations = new AtomicLong();
+
+	public ElementCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	@SuppressWarnings("serial")
+	public ElementCache(final int capacity) {
+		this.entries = new LinkedHashMap<CompiledLocator, List<WebElement>>(16, 0.75f, true) {
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<CompiledLocator, List<WebElement>> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Returns a copy of the cached element handles or null on a miss.
+	 */
+	public List<WebElement> get(CompiledLocator compiledLocator) {
+		List<WebElement> elements;
+		synchronized (this) {
+			elements = entries.get(compiledLocator);
+		}
+		if (elements == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return new ArrayList<WebElement>(elements);
+	}
+
+	public void put(CompiledLocator compiledLocator, List<WebElement> elements) {
+		List<WebElement> copy = new ArrayList<WebElement>(elements);
+		synchronized (this) {
+			entries.put(compiledLocator, copy);
+		}
+	}
+
+	public synchronized void remove(CompiledLocator compiledLocator) {
+		entries.remove(compiledLocator);
+	}
+
+	public void invalidate() {
+		synchronized (this) {
+			if (entries.isEmpty()) {
+				return;
+			}
+			entries.clear();
+		}
+		invalidations.incrementAndGet();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+
+	public double getHitRate() {
+		long lookups = hits.get() + misses.get();
+		return lookups > 0 ? (double) hits.get() / lookups : 0.0;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d hits, %d misses, %.1f%% hit rate, %d invalidations", getHits(), getMisses(),
+				getHitRate() * 100, getInvalidations());
+	}
+}
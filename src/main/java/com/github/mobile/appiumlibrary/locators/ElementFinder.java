@@ -2,11 +2,14 @@ package com.github.mobile.appiumlibrary.locators;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Hashtable;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.regex.Pattern;
 
 import io.appium.java_client.AppiumDriver;
 import io.appium.java_client.android.AndroidDriver;
@@ -14,14 +17,73 @@ import io.appium.java_client.ios.IOSDriver;
 
 import org.openqa.selenium.By;
 import org.openqa.selenium.SearchContext;
+import org.openqa.selenium.InvalidSelectorException;
 import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.NoSuchElementException;
+import org.openqa.selenium.WebDriverException;
 import org.openqa.selenium.WebElement;
 import org.python.util.PythonInterpreter;
 
-import com.github.mobile.appiumlibrary.utils.Python;
+import com.github.mobile.appiumlibrary.locators.PageSnapshot.SnapshotNode;
 
 public class ElementFinder {
-	protected final static Hashtable<String, CustomStrategy> registeredLocationStrategies = new Hashtable<String, CustomStrategy>();
+	/**
+	 * Custom location strategies by web driver and upper case strategy name
+	 */
+	protected final static Map<AppiumDriver, Map<String, CustomStrategy>> registeredLocationStrategies = new WeakHashMap<AppiumDriver, Map<String, CustomStrategy>>();
+	
+	protected final static LocatorCache locatorCache = new LocatorCache();
+	
+	/**
+	 * Base URL caches by web driver, dropped with the closed sessions
+	 */
+	protected final static Map<AppiumDriver, UrlCache> urlCaches = new WeakHashMap<AppiumDriver, UrlCache>();
+	
+	/**
+	 * Current contexts by web driver, cached as they only change by switching
+	 * the context, see {@link #getContext(AppiumDriver)}
+	 */
+	protected final static Map<AppiumDriver, String> contexts = new WeakHashMap<AppiumDriver, String>();
+	
+	protected static volatile FilterMode filterMode = FilterMode.CLIENT;
+	
+	protected final static String NATIVE_CONTEXT = "NATIVE_APP";
+	
+	protected final static String UPPER_CASE = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+	
+	protected final static String LOWER_CASE = "abcdefghijklmnopqrstuvwxyz";
+	
+	/**
+	 * Values that can be quoted in a UiSelector and in a regular expression
+	 * without escaping
+	 */
+	protected final static Pattern UI_SELECTOR_VALUE_PATTERN = Pattern.compile("[\\w.:/ -]+");
+	
+	protected final static Pattern CLASS_NAME_PATTERN = Pattern.compile("[\\w.$]+");
+	
+	protected final static String FILTER_SCRIPT = "var elements = arguments[0], tag = arguments[1], names = arguments[2], "
+			+ "values = arguments[3], matches = [];"
+			+ "for (var i = 0; i < elements.length; i++) {"
+			+ "  var match = elements[i].tagName.toLowerCase() == tag;"
+			+ "  for (var j = 0; match && j < names.length; j++) {"
+			+ "    match = elements[i].getAttribute(names[j]) == values[j];"
+			+ "  }"
+			+ "  matches.push(match);"
+			+ "}"
+			+ "return matches;";
+	
+	protected final static Map<String, Strategy> STRATEGIES_BY_PREFIX = new HashMap<String, Strategy>();
+	
+	protected final static Map<String, KeyAttrs> KEY_ATTRS_BY_TAG = new HashMap<String, KeyAttrs>();
+	
+	static {
+		for(StrategyEnum strategy : StrategyEnum.values()){
+			STRATEGIES_BY_PREFIX.put(strategy.name(), strategy);
+		}
+		for(KeyAttrs keyAttrs : KeyAttrs.values()){
+			KEY_ATTRS_BY_TAG.put(keyAttrs.name(), keyAttrs);
+		}
+	}
 	
 	protected enum KeyAttrs{
 		DEFAULT("@id,@name"), A("@id,@name,@href,normalize-space(descendant-or-self::text())"), IMG(
@@ -30,8 +92,44 @@ public class ElementFinder {
 		
 		protected String[] keyAttrs;
 		
+		protected boolean urlAttrs;
+		
+		/**
+		 * Precomputed XPath comparisons of the key attributes
+		 */
+		protected String[] searchers;
+		
+		/**
+		 * Precomputed XPath comparisons of the URL attributes
+		 */
+		protected String[] urlSearchers;
+		
 		KeyAttrs(String keyAttrs){
 			this.keyAttrs = keyAttrs.split(",");
+			this.urlAttrs = keyAttrs.contains("@src") || keyAttrs.contains("@href");
+			this.searchers = new String[this.keyAttrs.length];
+			for(int i = 0; i < this.keyAttrs.length; i++){
+				searchers[i] = this.keyAttrs[i] + "=";
+			}
+			List<String> urlSearchers = new ArrayList<String>();
+			for(String attr : new String[]{"@src", "@href"}){
+				if(Arrays.asList(this.keyAttrs).contains(attr)){
+					urlSearchers.add(attr + "=");
+				}
+			}
+			this.urlSearchers = urlSearchers.toArray(new String[urlSearchers.size()]);
+		}
+		
+		public String[] getSearchers(){
+			return searchers;
+		}
+		
+		public String[] getUrlSearchers(){
+			return urlSearchers;
+		}
+		
+		public boolean hasUrlAttrs(){
+			return urlAttrs;
 		}
 		
 		public String[] getKeyAttrs(){
@@ -39,90 +137,119 @@ public class ElementFinder {
 		}
 	}
 	
+	/**
+	 * How elements are filtered by tag and tag constraints
+	 */
+	public enum FilterMode{
+		/**
+		 * Check tag and constraints of every element with separate requests
+		 */
+		CLIENT,
+		/**
+		 * Compile tag and constraints into the query or check all elements at
+		 * once
+		 */
+		SERVER;
+	}
+	
 	protected interface Strategy{
-		List<WebElement> findBy(AppiumDriver webDriver, FindByCoordinates findByCoordinates);
+		List<WebElement> findBy(AppiumDriver webDriver, CompiledLocator compiledLocator);
 	};
 	
 	protected enum StrategyEnum implements Strategy{
 		DEFAULT{
 			@Override
-			public List<WebElement> findBy(AppiumDriver webDriver, FindByCoordinates findByCoordinates){
-				if(findByCoordinates.criteria.startsWith("//")){
-					return XPATH.findBy(webDriver, findByCoordinates);
+			public List<WebElement> findBy(AppiumDriver webDriver, CompiledLocator compiledLocator){
+				if(compiledLocator.criteria.startsWith("//")){
+					return XPATH.findBy(webDriver, compiledLocator);
 				}
 				
-				return findByKeyAttrs(webDriver, findByCoordinates);
+				return findByKeyAttrs(webDriver, compiledLocator);
 			}
 		},
 		IDENTIFIER{
 			@Override
-			public List<WebElement> findBy(AppiumDriver webDriver, FindByCoordinates findByCoordinates){
-				List<WebElement> elements = webDriver.findElements(By.id(findByCoordinates.criteria));
-				elements.addAll(webDriver.findElements(By.name(findByCoordinates.criteria)));
-				return filterElements(elements, findByCoordinates);
+			public List<WebElement> findBy(AppiumDriver webDriver, CompiledLocator compiledLocator){
+				return findByIdentifier(webDriver, compiledLocator, false);
 			}
 		},
 		ID{
 			@Override
-			public List<WebElement> findBy(AppiumDriver webDriver, FindByCoordinates findByCoordinates){
-				return filterElements(webDriver.findElements(By.id(findByCoordinates.criteria)), findByCoordinates);
+			public List<WebElement> findBy(AppiumDriver webDriver, CompiledLocator compiledLocator){
+				return filterElements(webDriver, webDriver.findElements(By.id(compiledLocator.criteria)), compiledLocator);
 			}
 		},
 		NAME{
 			@Override
-			public List<WebElement> findBy(AppiumDriver webDriver, FindByCoordinates findByCoordinates){
-				return filterElements(webDriver.findElements(By.name(findByCoordinates.criteria)), findByCoordinates);
+			public List<WebElement> findBy(AppiumDriver webDriver, CompiledLocator compiledLocator){
+				return filterElements(webDriver, webDriver.findElements(By.name(compiledLocator.criteria)), compiledLocator);
 			}
 		},
 		XPATH{
 			@Override
-			public List<WebElement> findBy(AppiumDriver webDriver, FindByCoordinates findByCoordinates){
-				return filterElements(webDriver.findElementsByXPath(findByCoordinates.criteria), findByCoordinates);
+			public List<WebElement> findBy(AppiumDriver webDriver, CompiledLocator compiledLocator){
+				if(compiledLocator.tag != null && filterMode == FilterMode.SERVER){
+					return webDriver.findElementsByXPath(getFilteredXpath(compiledLocator));
+				}
+				return filterElements(webDriver, webDriver.findElementsByXPath(compiledLocator.criteria), compiledLocator);
 			}
 		},
 		CLASS{
 			@Override
-			public List<WebElement> findBy(AppiumDriver webDriver, FindByCoordinates findByCoordinates){
-				return filterElements(webDriver.findElements(By.className(findByCoordinates.criteria)), findByCoordinates);
+			public List<WebElement> findBy(AppiumDriver webDriver, CompiledLocator compiledLocator){
+				return filterElements(webDriver, webDriver.findElements(By.className(compiledLocator.criteria)), compiledLocator);
 			}
 		},
 		ACCESSIBILITY_ID{
 			@Override
-			public List<WebElement> findBy(AppiumDriver webDriver, FindByCoordinates findByCoordinates){
-				return filterElements(webDriver.findElementsByAccessibilityId(findByCoordinates.criteria), findByCoordinates);
+			public List<WebElement> findBy(AppiumDriver webDriver, CompiledLocator compiledLocator){
+				return filterElements(webDriver, webDriver.findElementsByAccessibilityId(compiledLocator.criteria), compiledLocator);
 			}
 		},
 		ANDROID{
 			@Override
-			public List<WebElement> findBy(AppiumDriver webDriver, FindByCoordinates findByCoordinates){
+			public List<WebElement> findBy(AppiumDriver webDriver, CompiledLocator compiledLocator){
 				AndroidDriver android = (AndroidDriver) webDriver;
-				return filterElements(android.findElementsByAndroidUIAutomator(findByCoordinates.criteria), findByCoordinates);
+				if(compiledLocator.tag != null && filterMode == FilterMode.SERVER){
+					String uiSelector = getFilteredUiSelector(compiledLocator);
+					if(uiSelector != null){
+						return android.findElementsByAndroidUIAutomator(uiSelector);
+					}
+				}
+				return filterElements(webDriver, android.findElementsByAndroidUIAutomator(compiledLocator.criteria), compiledLocator);
 			}
 		},
 		IOS{
 			@Override
-			public List<WebElement> findBy(AppiumDriver webDriver, FindByCoordinates findByCoordinates){
+			public List<WebElement> findBy(AppiumDriver webDriver, CompiledLocator compiledLocator){
 				IOSDriver ios = (IOSDriver) webDriver;
-				return filterElements(ios.findElementsByIosUIAutomation(findByCoordinates.criteria), findByCoordinates);
+				return filterElements(webDriver, ios.findElementsByIosUIAutomation(compiledLocator.criteria), compiledLocator);
 			}
 		},
 		CSS{
 			@Override
-			public List<WebElement> findBy(AppiumDriver webDriver, FindByCoordinates findByCoordinates){
-				return filterElements(webDriver.findElementsByCssSelector(findByCoordinates.criteria), findByCoordinates);
+			public List<WebElement> findBy(AppiumDriver webDriver, CompiledLocator compiledLocator){
+				return filterElements(webDriver, webDriver.findElementsByCssSelector(compiledLocator.criteria), compiledLocator);
 			}
 		};
 		
 	}
 	
-	protected static List<WebElement> filterElements(List<WebElement> elements, FindByCoordinates findByCoordinates){
-		if(findByCoordinates.tag == null){
+	protected static List<WebElement> filterElements(AppiumDriver webDriver, List<WebElement> elements, CompiledLocator compiledLocator){
+		if(compiledLocator.tag == null){
 			return elements;
 		}
 		
+		if(filterMode == FilterMode.SERVER && elements.size() > 0){
+			List<WebElement> result = filterElementsInBatch(webDriver, elements, compiledLocator);
+			if(result != null){
+				return result;
+			}
+		}
+		
 		List<WebElement> result = new ArrayList<WebElement>();
 		for(WebElement element : elements){
-			if(elementMatches(element, findByCoordinates)){
+			if(elementMatches(element, compiledLocator)){
 				result.add(element);
 			}
 		}
@@ -130,14 +257,14 @@ public class ElementFinder {
 		return result;
 	}
 	
-	protected static boolean elementMatches(WebElement element, FindByCoordinates findByCoordinates){
-		if(!element.getTagName().toLowerCase().equals(findByCoordinates.tag)){
+	protected static boolean elementMatches(WebElement element, CompiledLocator compiledLocator){
+		if(!element.getTagName().toLowerCase().equals(compiledLocator.tag)){
 			return false;
 		}
 		
-		if(findByCoordinates.constraints !=null){
-			for(String name : findByCoordinates.constraints.keySet()){
-				if(!element.getAttribute(name).equals(findByCoordinates.constraints.get(name))){
+		if(compiledLocator.constraints !=null){
+			for(String name : compiledLocator.constraints.keySet()){
+				if(!element.getAttribute(name).equals(compiledLocator.constraints.get(name))){
 					return false;
 				}
 			}
@@ -146,70 +273,342 @@ public class ElementFinder {
 		return true;
 	}
 	
-	protected static List<WebElement> findByKeyAttrs(AppiumDriver webDriver, FindByCoordinates findByCoordinates){
-		KeyAttrs keyAttrs = KeyAttrs.DEFAULT;
+	/**
+	 * Filters the elements with a constant number of requests. Returns null if
+	 * the elements have to be checked one by one.
+	 */
+	protected static List<WebElement> filterElementsInBatch(AppiumDriver webDriver, List<WebElement> elements, CompiledLocator compiledLocator){
+		if(compiledLocator.strategy == StrategyEnum.CSS || compiledLocator.strategy instanceof RegisteredStrategy){
+			return filterElementsByScript(webDriver, elements, compiledLocator);
+		}
 		
-		if(findByCoordinates.tag !=null){
-			try{
-				keyAttrs = KeyAttrs.valueOf(findByCoordinates.tag.trim().toUpperCase());				
-			}catch(IllegalArgumentException e){
-				
+		String context;
+		try{
+			context = getContext(webDriver);
+		}catch(WebDriverException e){
+			return null;
+		}
+		if(context == null || !context.startsWith(NATIVE_CONTEXT)){
+			return filterElementsByScript(webDriver, elements, compiledLocator);
+		}
+		return filterElementsBySnapshot(webDriver, elements, compiledLocator);
+	}
+	
+	protected static List<WebElement> filterElementsByScript(AppiumDriver webDriver, List<WebElement> elements, CompiledLocator compiledLocator){
+		List<String> names = new ArrayList<String>(compiledLocator.constraints.keySet());
+		List<String> values = new ArrayList<String>(compiledLocator.constraints.values());
+		Object matches;
+		try{
+			matches = ((JavascriptExecutor) webDriver).executeScript(FILTER_SCRIPT, elements, compiledLocator.tag, names, values);
+		}catch(WebDriverException e){
+			return null;
+		}
+		if(!(matches instanceof List<?>) || ((List<?>) matches).size() != elements.size()){
+			return null;
+		}
+		
+		List<WebElement> result = new ArrayList<WebElement>();
+		int index = 0;
+		for(Object match : (List<?>) matches){
+			if(Boolean.TRUE.equals(match)){
+				result.add(elements.get(index));
 			}
+			index++;
+		}
+		return result;
+	}
+	
+	/**
+	 * Evaluates the tag and the constraints against the nodes of one page source
+	 * snapshot, which the strategy selects. As the elements can not be mapped to
+	 * nodes, this only succeeds if all or none of the nodes match.
+	 */
+	protected static List<WebElement> filterElementsBySnapshot(AppiumDriver webDriver, List<WebElement> elements, CompiledLocator compiledLocator){
+		if(!(compiledLocator.strategy instanceof StrategyEnum)){
+			return null;
+		}
+		String strategyName = ((StrategyEnum) compiledLocator.strategy).name();
+		if(!PageSnapshot.LOCAL_STRATEGIES.contains(strategyName)){
+			return null;
 		}
-		String xpathCriteria = escapeXpathValue(findByCoordinates.criteria);
-		String xpathTag = findByCoordinates.tag;
 		
-		if(findByCoordinates.tag == null){
-			xpathTag = "*";
+		PageSnapshot snapshot;
+		try{
+			snapshot = PageSnapshot.parse(webDriver.getPageSource(), webDriver instanceof AndroidDriver);
+		}catch(WebDriverException e){
+			return null;
+		}
+		if(snapshot == null){
+			return null;
+		}
+		List<SnapshotNode> nodes = snapshot.findNodes(strategyName, compiledLocator.criteria);
+		if(nodes == null || nodes.size() != elements.size()){
+			return null;
 		}
 		
-		List<String> xpathConstraints = new ArrayList<String>();
-		if(findByCoordinates.constraints !=null){
-			for(Entry<String, String> entry : findByCoordinates.constraints.entrySet()){
-				xpathConstraints.add(String.format("@%s='%s'", entry.getKey(), entry.getValue()));
+		int matches = 0;
+		for(SnapshotNode node : nodes){
+			if(nodeMatches(node, compiledLocator)){
+				matches++;
 			}
 		}
-		List<String> xpathSearchers = new ArrayList<String>();
-		for(String attr : keyAttrs.getKeyAttrs()){
-			xpathSearchers.add(String.format("%s=%s", attr, xpathCriteria));
+		if(matches == nodes.size()){
+			return new ArrayList<WebElement>(elements);
 		}
-		xpathSearchers.addAll(getAttrsWithUrl(webDriver, keyAttrs, findByCoordinates.criteria));
-		String xpath = String.format("//%s[%s(%s)]", xpathTag, Python.join(" and ", xpathConstraints)
-				+ (xpathConstraints.size() > 0 ? " and " : ""), Python.join(" or ", xpathSearchers));
-
-		return webDriver.findElements(By.xpath(xpath));
-	}
-	
-	protected static List<String> getAttrsWithUrl(AppiumDriver webDriver, KeyAttrs keyAttrs, String criteria) {
-		List<String> attrs = new ArrayList<String>();
-		String url = null;
-		String xpathUrl = null;
-		String[] srcHref = { "@src", "@href" };
-		for (String attr : srcHref) {
-			for (String keyAttr : keyAttrs.getKeyAttrs()) {
-				if (attr.equals(keyAttr)) {
-					if (url == null || xpathUrl == null) {
-						url = getBaseUrl(webDriver) + "/" + criteria;
-						xpathUrl = escapeXpathValue(url);
-					}
-					attrs.add(String.format("%s=%s", attr, xpathUrl));
+		if(matches == 0){
+			return new ArrayList<WebElement>();
+		}
+		return null;
+	}
+	
+	protected static boolean nodeMatches(SnapshotNode node, CompiledLocator compiledLocator){
+		if(!node.getTagName().toLowerCase().equals(compiledLocator.tag)){
+			return false;
+		}
+		
+		for(Entry<String, String> entry : compiledLocator.constraints.entrySet()){
+			if(!entry.getValue().equals(node.get(entry.getKey()))){
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Appends the tag and the constraints as predicate to the XPath criteria.
+	 */
+	protected static String getFilteredXpath(CompiledLocator compiledLocator){
+		StringBuilder xpath = new StringBuilder();
+		xpath.append('(').append(compiledLocator.criteria).append(")[translate(local-name(), '");
+		xpath.append(UPPER_CASE).append("', '").append(LOWER_CASE).append("')=");
+		xpath.append(escapeXpathValue(compiledLocator.tag));
+		for(Entry<String, String> entry : compiledLocator.constraints.entrySet()){
+			xpath.append(" and @").append(entry.getKey()).append('=').append(escapeXpathValue(entry.getValue()));
+		}
+		return xpath.append(']').toString();
+	}
+	
+	/**
+	 * Appends the tag as case insensitive class name to the UiSelector
+	 * criteria. Returns null if the criteria can not be extended safely.
+	 */
+	protected static String getFilteredUiSelector(CompiledLocator compiledLocator){
+		String criteria = compiledLocator.criteria.trim();
+		if(!compiledLocator.constraints.isEmpty() || !criteria.endsWith(")") || criteria.indexOf(';') != -1
+				|| !CLASS_NAME_PATTERN.matcher(compiledLocator.tag).matches()){
+			return null;
+		}
+		return String.format("%s.classNameMatches(\"(?i)%s\")", criteria,
+				compiledLocator.tag.replace(".", "[.]").replace("$", "[$]"));
+	}
+	
+	/**
+	 * Looks up elements by id or name with a single request. Elements of the
+	 * native Android context are matched with one UiSelector per attribute,
+	 * everything else, including web contexts, with an XPath union of the
+	 * attributes.
+	 */
+	protected static List<WebElement> findByIdentifier(AppiumDriver webDriver, CompiledLocator compiledLocator, boolean firstOnly){
+		// the tag filter may drop the first element
+		firstOnly = firstOnly && compiledLocator.tag == null;
+		String criteria = compiledLocator.criteria;
+		if(webDriver instanceof AndroidDriver && UI_SELECTOR_VALUE_PATTERN.matcher(criteria).matches()
+				&& isNativeContext(webDriver)){
+			AndroidDriver android = (AndroidDriver) webDriver;
+			String uiSelector = getIdentifierUiSelector(criteria);
+			try{
+				if(firstOnly){
+					return Collections.singletonList(android.findElementByAndroidUIAutomator(uiSelector));
 				}
+				return filterElements(webDriver, android.findElementsByAndroidUIAutomator(uiSelector), compiledLocator);
+			}catch(InvalidSelectorException e){
+				// the server does not support UiSelectors, e.g. with another
+				// automation backend
+			}catch(NoSuchElementException e){
+				return new ArrayList<WebElement>();
+			}
+		}
+		
+		String xpath = getIdentifierXpath(criteria, webDriver instanceof AndroidDriver);
+		try{
+			if(firstOnly){
+				return Collections.singletonList(webDriver.findElementByXPath(xpath));
+			}
+			return filterElements(webDriver, webDriver.findElementsByXPath(xpath), compiledLocator);
+		}catch(NoSuchElementException e){
+			return new ArrayList<WebElement>();
+		}
+	}
+	
+	protected static boolean isNativeContext(AppiumDriver webDriver){
+		String context = getContext(webDriver);
+		return context == null || context.startsWith(NATIVE_CONTEXT);
+	}
+	
+	protected static String getIdentifierUiSelector(String criteria){
+		String resourceId = criteria.replace(".", "[.]");
+		return String.format("new UiSelector().resourceIdMatches(\"(.+:id/)?%s\");"
+				+ "new UiSelector().description(\"%s\");new UiSelector().text(\"%s\")", resourceId, criteria, criteria);
+	}
+	
+	protected static String getIdentifierXpath(String criteria, boolean android){
+		String value = escapeXpathValue(criteria);
+		if(android){
+			return String.format("//*[@id=%1$s or @name=%1$s or @resource-id=%1$s or substring-after(@resource-id, ':id/')=%1$s"
+					+ " or @content-desc=%1$s or @text=%1$s]", value);
+		}
+		return String.format("//*[@id=%1$s or @name=%1$s]", value);
+	}
+	
+	protected static List<WebElement> findByKeyAttrs(AppiumDriver webDriver, CompiledLocator compiledLocator){
+		String baseUrl = compiledLocator.keyAttrs.hasUrlAttrs() ? getBaseUrl(webDriver) : null;
+		return webDriver.findElements(By.xpath(XpathBuilder.keyAttrsXpath(compiledLocator, baseUrl)));
+	}
+	
+	/**
+	 * Looks the locator up in the page source snapshot. Returns null if the
+	 * locator can not be answered locally and has to be sent to the server.
+	 */
+	public static List<SnapshotNode> findNodes(PageSnapshot snapshot, CompiledLocator compiledLocator){
+		if(!snapshot.isParsed()){
+			return null;
+		}
+		
+		List<SnapshotNode> nodes;
+		if(compiledLocator.strategy == StrategyEnum.XPATH
+				|| (compiledLocator.strategy == StrategyEnum.DEFAULT && compiledLocator.criteria.startsWith("//"))){
+			nodes = snapshot.findNodesByXpath(compiledLocator.criteria);
+		}else if(compiledLocator.strategy == StrategyEnum.DEFAULT){
+			if(compiledLocator.keyAttrs.hasUrlAttrs()){
+				// The URL attributes depend on the current URL of a web context
+				return null;
+			}
+			nodes = snapshot.findNodesByXpath(XpathBuilder.keyAttrsXpath(compiledLocator, null));
+		}else if(compiledLocator.strategy instanceof StrategyEnum){
+			nodes = snapshot.findNodes(((StrategyEnum) compiledLocator.strategy).name(), compiledLocator.criteria);
+		}else{
+			return null;
+		}
+		
+		if(nodes == null || compiledLocator.tag == null){
+			return nodes;
+		}
+		List<SnapshotNode> result = new ArrayList<SnapshotNode>();
+		for(SnapshotNode node : nodes){
+			if(nodeMatches(node, compiledLocator)){
+				result.add(node);
 			}
 		}
-		return attrs;
+		return result;
 	}
 	
 	protected static String getBaseUrl(AppiumDriver webDriver) {
-		String url = webDriver.getCurrentUrl();
-		int lastIndex = url.lastIndexOf('/');
-		if (lastIndex != -1) {
-			url = url.substring(0, lastIndex);
+		return getUrlCache(webDriver).getBaseUrl(webDriver);
+	}
+	
+	/**
+	 * Returns the base URL cache of the session of the web driver. Callers
+	 * have to invalidate it after every action that might navigate.
+	 */
+	public static UrlCache getUrlCache(AppiumDriver webDriver) {
+		synchronized (urlCaches) {
+			UrlCache urlCache = urlCaches.get(webDriver);
+			if (urlCache == null) {
+				urlCache = new UrlCache();
+				urlCaches.put(webDriver, urlCache);
+			}
+			return urlCache;
 		}
-		return url;
 	}
 	
-	public static void addLocationStrategy(String strategyName, String functionDefinition, String delimiter) {
-		registeredLocationStrategies.put(strategyName.toUpperCase(), new CustomStrategy(functionDefinition, delimiter));
+	/**
+	 * Registers a custom location strategy for the session of the web driver.
+	 * If `install` is true, the function is installed once per page as global
+	 * function and lookups only send a call of it.
+	 */
+	public static void addLocationStrategy(AppiumDriver webDriver, String strategyName, String functionDefinition,
+			String delimiter, boolean install) {
+		String name = strategyName.toUpperCase();
+		synchronized (registeredLocationStrategies) {
+			Map<String, CustomStrategy> strategies = registeredLocationStrategies.get(webDriver);
+			if (strategies == null) {
+				strategies = new HashMap<String, CustomStrategy>();
+				registeredLocationStrategies.put(webDriver, strategies);
+			}
+			strategies.put(name, new CustomStrategy(name, functionDefinition, delimiter, install));
+		}
+	}
+	
+	/**
+	 * Forgets everything registered or cached for the session of the web
+	 * driver, e.g. before the session is reused for another application.
+	 */
+	public static void removeSession(AppiumDriver webDriver) {
+		synchronized (urlCaches) {
+			urlCaches.remove(webDriver);
+		}
+		invalidateContext(webDriver);
+		synchronized (registeredLocationStrategies) {
+			registeredLocationStrategies.remove(webDriver);
+		}
+	}
+	
+	/**
+	 * Returns the current context of the session of the web driver, which is
+	 * fetched once and then cached until {@link #invalidateContext} is called.
+	 */
+	public static String getContext(AppiumDriver webDriver) {
+		synchronized (contexts) {
+			String context = contexts.get(webDriver);
+			if (context != null) {
+				return context;
+			}
+		}
+		String context = webDriver.getContext();
+		if (context != null) {
+			synchronized (contexts) {
+				contexts.put(webDriver, context);
+			}
+		}
+		return context;
+	}
+	
+	/**
+	 * Forgets the cached context of the session of the web driver. Has to be
+	 * called after every action that might switch the context.
+	 */
+	public static void invalidateContext(AppiumDriver webDriver) {
+		synchronized (contexts) {
+			contexts.remove(webDriver);
+		}
+	}
+	
+	protected static CustomStrategy getLocationStrategy(AppiumDriver webDriver, String strategyName) {
+		synchronized (registeredLocationStrategies) {
+			Map<String, CustomStrategy> strategies = registeredLocationStrategies.get(webDriver);
+			return strategies != null ? strategies.get(strategyName) : null;
+		}
+	}
+	
+	/**
+	 * Returns false for locators of custom strategies, which are evaluated by
+	 * scripts that do not wait for elements.
+	 */
+	public static boolean isImplicitWaitSupported(CompiledLocator compiledLocator) {
+		return !(compiledLocator.strategy instanceof RegisteredStrategy);
+	}
+	
+	public static LocatorCache getLocatorCache() {
+		return locatorCache;
+	}
+	
+	public static FilterMode getFilterMode() {
+		return filterMode;
+	}
+	
+	public static void setFilterMode(FilterMode filterMode) {
+		ElementFinder.filterMode = filterMode;
 	}
 	
 	public static List<WebElement> find(AppiumDriver webDriver, String locator){
@@ -217,18 +616,82 @@ public class ElementFinder {
 	}
 	
 	public static List<WebElement> find(AppiumDriver webDriver, String locator, String tag){
-		if(webDriver == null){
-			
+		return find(webDriver, locatorCache.get(locator, tag));
+	}
+	
+	public static List<WebElement> find(AppiumDriver webDriver, CompiledLocator compiledLocator){
+		return compiledLocator.strategy.findBy(webDriver, compiledLocator);
+	}
+	
+	/**
+	 * Finds the elements of the locator. If `firstOnly` is true, strategies
+	 * that support it stop at the first match and the result contains at most
+	 * one element.
+	 */
+	public static List<WebElement> find(AppiumDriver webDriver, CompiledLocator compiledLocator, boolean firstOnly){
+		if(!firstOnly){
+			return find(webDriver, compiledLocator);
+		}
+		List<WebElement> elements = compiledLocator.strategy == StrategyEnum.IDENTIFIER
+				? findByIdentifier(webDriver, compiledLocator, true) : find(webDriver, compiledLocator);
+		return elements.size() > 1 ? elements.subList(0, 1) : elements;
+	}
+	
+	/**
+	 * Returns true, if the locator can be answered from a page source
+	 * snapshot, so that taking one for it is worth the request.
+	 */
+	public static boolean isSnapshotSupported(CompiledLocator compiledLocator){
+		if(compiledLocator.strategy == StrategyEnum.DEFAULT){
+			return compiledLocator.criteria.startsWith("//") || !compiledLocator.keyAttrs.hasUrlAttrs();
 		}
+		return compiledLocator.strategy == StrategyEnum.XPATH || (compiledLocator.strategy instanceof StrategyEnum
+				&& PageSnapshot.LOCAL_STRATEGIES.contains(((StrategyEnum) compiledLocator.strategy).name()));
+	}
+	
+	/**
+	 * Counts the elements matching each of the locators. Locators that can be
+	 * answered by the snapshot cost no request, all others are sent to the
+	 * server one after the other, as the server executes the commands of a
+	 * session one at a time anyway. The snapshot may be null.
+	 * @return The number of matching elements in the order of the locators
+	 */
+	public static List<Integer> countAll(AppiumDriver webDriver, List<CompiledLocator> compiledLocators,
+			PageSnapshot snapshot){
+		List<Integer> counts = new ArrayList<Integer>(compiledLocators.size());
+		for(CompiledLocator compiledLocator : compiledLocators){
+			List<SnapshotNode> nodes = snapshot != null ? findNodes(snapshot, compiledLocator) : null;
+			counts.add(nodes != null ? nodes.size() : find(webDriver, compiledLocator).size());
+		}
+		return counts;
+	}
+	
+	/**
+	 * Parses the locator and the tag into an immutable {@link CompiledLocator}.
+	 * Callers should prefer the cached instances of {@link #getLocatorCache()}.
+	 */
+	public static CompiledLocator compile(String locator, String tag){
+		String prefix = null;
+		String criteria = locator;
+		if(!locator.startsWith("//")){
+			int index = locator.indexOf('=');
+			if(index != -1){
+				prefix = locator.substring(0, index).trim().toUpperCase();
+				criteria = locator.substring(index + 1).trim();
+			}
+		}
+		Strategy strategy = parseStrategy(prefix);
 		
-		if(locator ==null){
-			
+		if(tag == null){
+			return new CompiledLocator(locator, null, strategy, criteria, null, null, KeyAttrs.DEFAULT);
 		}
 		
-		FindByCoordinates findByCoordinates = new FindByCoordinates();
-		Strategy strategy = parseLocator(findByCoordinates, locator);
-		parseTag(findByCoordinates, strategy, tag);
-		return strategy.findBy(webDriver, findByCoordinates);
+		String tagName = tag.toLowerCase();
+		Map<String, String> constraints = new TreeMap<String, String>();
+		String parsedTag = parseTag(tagName, constraints);
+		KeyAttrs keyAttrs = KEY_ATTRS_BY_TAG.get(parsedTag.trim().toUpperCase());
+		return new CompiledLocator(locator, tag, strategy, criteria, parsedTag, constraints,
+				keyAttrs != null ? keyAttrs : KeyAttrs.DEFAULT);
 	}
 	
 	protected static ThreadLocal<PythonInterpreter> loggingPythonInterpreter = new ThreadLocal<PythonInterpreter>() {
@@ -246,40 +709,20 @@ public class ElementFinder {
 				String.format("logger.warn('%s');", msg.replace("'", "\\'").replace("\n", "\\n")));
 	}
 	
-	protected static Strategy parseLocator(FindByCoordinates findByCoordinates, String locator){
-		String prefix = null;
-		String criteria = locator;
-		if(!locator.startsWith("//")){
-			String[] locatorParts = locator.split("=", 2);
-			if(locatorParts.length == 2){
-				prefix = locatorParts[0].trim().toUpperCase();
-				criteria = locatorParts[1].trim();
-			}
+	protected static Strategy parseStrategy(String prefix){
+		if(prefix == null){
+			return StrategyEnum.DEFAULT;
 		}
-		
-		Strategy strategy = StrategyEnum.DEFAULT;
-		if(prefix != null){
-			try{
-				strategy = StrategyEnum.valueOf(prefix);
-			}catch(IllegalArgumentException e){
-				// No standard locator type. Look for custom strategy
-				CustomStrategy customStrategy = registeredLocationStrategies.get(prefix);
-				if (customStrategy != null) {
-					strategy = customStrategy;
-				}
-			}
+		Strategy strategy = STRATEGIES_BY_PREFIX.get(prefix);
+		if(strategy == null){
+			// No standard locator type. Custom strategies are registered per
+			// session, so they are looked up on every find
+			strategy = new RegisteredStrategy(prefix);
 		}
-		
-		findByCoordinates.criteria = criteria;
 		return strategy;
 	}
 	
-	protected static void parseTag(FindByCoordinates findByCoordinates, Strategy strategy, String tag) {
-		if (tag == null) {
-			return;
-		}
-		tag = tag.toLowerCase();
-		Map<String, String> constraints = new TreeMap<String, String>();
+	protected static String parseTag(String tag, Map<String, String> constraints) {
 		if (tag.equals("link")) {
 			tag = "a";
 		} else if (tag.equals("image")) {
@@ -301,8 +744,7 @@ public class ElementFinder {
 			tag = "input";
 			constraints.put("type", "file");
 		}
-		findByCoordinates.tag = tag;
-		findByCoordinates.constraints = constraints;
+		return tag;
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -318,56 +760,98 @@ public class ElementFinder {
 		return list;
 	}
 	
-	protected static class FindByCoordinates {
+	/**
+	 * Strategy of a locator prefix that is no standard locator type. Uses the
+	 * custom strategy registered for the session or the default strategy.
+	 */
+	protected static class RegisteredStrategy implements Strategy{
+		protected final String strategyName;
+
+		public RegisteredStrategy(String strategyName) {
+			this.strategyName = strategyName;
+		}
 
-		String criteria;
-		String tag;
-		Map<String, String> constraints;
+		@Override
+		public List<WebElement> findBy(AppiumDriver webDriver, CompiledLocator compiledLocator) {
+			CustomStrategy strategy = getLocationStrategy(webDriver, strategyName);
+			if (strategy == null) {
+				return StrategyEnum.DEFAULT.findBy(webDriver, compiledLocator);
+			}
+			return strategy.findBy(webDriver, compiledLocator);
+		}
 	}
 	
 	protected static class CustomStrategy implements Strategy{
+		/**
+		 * Returned by the call script if the function is not installed
+		 */
+		protected static final String NOT_INSTALLED = "__appiumLibraryStrategyNotInstalled__";
+
 		protected String functionDefinition;
 
 		protected String delimiter;
 
-		public CustomStrategy(String functionDefinition, String delimiter) {
+		protected boolean install;
+
+		/**
+		 * Script calling the installed function
+		 */
+		protected String callScript;
+
+		/**
+		 * Script installing and calling the function
+		 */
+		protected String installScript;
+
+		public CustomStrategy(String strategyName, String functionDefinition, String delimiter, boolean install) {
 			this.functionDefinition = functionDefinition;
 			this.delimiter = delimiter;
+			this.install = install;
+			if (install) {
+				// Include the hash, so that a changed definition is installed
+				// again
+				String globalName = String.format("__appiumLibraryStrategy_%s_%x", strategyName.replaceAll("\\W", "_"),
+						functionDefinition.hashCode());
+				this.callScript = String.format("var f = window['%s']; return f ? f.apply(window, arguments) : '%s';",
+						globalName, NOT_INSTALLED);
+				this.installScript = String.format("window['%s'] = function() {\n%s\n}; return window['%s'].apply(window, arguments);",
+						globalName, functionDefinition, globalName);
+			}
 		}
 
 		@Override
-		public List<WebElement> findBy(final AppiumDriver webDriver, final FindByCoordinates findByCoordinates) {
-			return filterElements(webDriver.findElements(new By() {
+		public List<WebElement> findBy(final AppiumDriver webDriver, final CompiledLocator compiledLocator) {
+			return filterElements(webDriver, webDriver.findElements(new By() {
 
 				@Override
 				public List<WebElement> findElements(SearchContext context) {
 					Object[] arguments = null;
 					if (delimiter == null) {
 						arguments = new Object[1];
-						arguments[0] = findByCoordinates.criteria;
+						arguments[0] = compiledLocator.criteria;
 					} else {
-						String[] splittedCriteria = findByCoordinates.criteria.split(delimiter);
+						String[] splittedCriteria = compiledLocator.criteria.split(delimiter);
 						arguments = new Object[splittedCriteria.length];
 						for (int i = 0; i < splittedCriteria.length; i++) {
 							arguments[i] = splittedCriteria[i];
 						}
 					}
-					Object o = ((JavascriptExecutor) webDriver).executeScript(functionDefinition, arguments);
+					if (!install) {
+						return toList(((JavascriptExecutor) webDriver).executeScript(functionDefinition, arguments));
+					}
+					Object o = ((JavascriptExecutor) webDriver).executeScript(callScript, arguments);
+					if (NOT_INSTALLED.equals(o)) {
+						// First lookup on this page
+						o = ((JavascriptExecutor) webDriver).executeScript(installScript, arguments);
+					}
 					return toList(o);
 				}
 
-			}), findByCoordinates);
+			}), compiledLocator);
 		}
 	}
 	
 	public static String escapeXpathValue(String value) {
-		if (value.contains("\"") && value.contains("'")) {
-			String[] partsWoApos = value.split("'");
-			return String.format("concat('%s')", Python.join("', \"'\", '", Arrays.asList(partsWoApos)));
-		}
-		if (value.contains("'")) {
-			return String.format("\"%s\"", value);
-		}
-		return String.format("'%s'", value);
+		return XpathBuilder.escapeValue(value);
 	}
 }
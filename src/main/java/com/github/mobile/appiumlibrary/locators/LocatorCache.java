@@ -0,0 +1,123 @@
+package com.github.mobile.appiumlibrary.locators;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, thread-safe LRU cache of {@link CompiledLocator} instances keyed by
+ * (locator, tag).
+ */
+public class LocatorCache {
+
+	/**
+	 * The default maximum number of cached locators
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * The maximum number of cached locators
+	 */
+	protected final int capacity;
+
+	/**
+	 * Cached locators in access order, guarded by this
+	 */
+	protected final LinkedHashMap<Key, CompiledLocator> entries;
+
+	protected final AtomicLong hits = new AtomicLong();
+
+	protected final AtomicLong misses = new AtomicLong();
+
+	public LocatorCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	@SuppressWarnings("serial")
+	public LocatorCache(final int capacity) {
+		this.capacity = capacity;
+		this.entries = new LinkedHashMap<Key, CompiledLocator>(16, 0.75f, true) {
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, CompiledLocator> eldest) {
+				return size() > LocatorCache.this.capacity;
+			}
+		};
+	}
+
+	/**
+	 * Returns the compiled form of the given locator and tag, compiling and
+	 * caching it on a miss.
+	 */
+	public CompiledLocator get(String locator, String tag) {
+		Key key = new Key(locator, tag);
+		CompiledLocator compiledLocator;
+		synchronized (this) {
+			compiledLocator = entries.get(key);
+		}
+		if (compiledLocator != null) {
+			hits.incrementAndGet();
+			return compiledLocator;
+		}
+
+		// Compile outside the lock. Concurrent misses on the same key compile
+		// twice, but both results are equal and immutable.
+		misses.incrementAndGet();
+		compiledLocator = ElementFinder.compile(locator, tag);
+		synchronized (this) {
+			entries.put(key, compiledLocator);
+		}
+		return compiledLocator;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public void resetStatistics() {
+		hits.set(0);
+		misses.set(0);
+	}
+
+	protected static final class Key {
+
+		final String locator;
+
+		final String tag;
+
+		Key(String locator, String tag) {
+			this.locator = locator;
+			this.tag = tag;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return locator.equals(other.locator) && (tag == null ? other.tag == null : tag.equals(other.tag));
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * locator.hashCode() + (tag != null ? tag.hashCode() : 0);
+		}
+	}
+}
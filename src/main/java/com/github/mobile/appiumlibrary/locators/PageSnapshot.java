@@ -0,0 +1,348 @@
+package com.github.mobile.appiumlibrary.locators;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Parsed and indexed copy of the page source as returned by Appium. Allows to
+ * answer text checks and simple element lookups locally instead of sending
+ * one request per check to the server.<br>
+ * <br>
+ * The source of web contexts is usually no well-formed XML. Such snapshots
+ * keep the raw source for text checks, but can not answer element lookups.
+ */
+public class PageSnapshot {
+
+	/**
+	 * Strategies that can be evaluated against a snapshot
+	 */
+	protected static final Set<String> LOCAL_STRATEGIES = new HashSet<String>(Arrays.asList("IDENTIFIER", "ID",
+			"NAME", "ACCESSIBILITY_ID", "CLASS"));
+
+	/**
+	 * The raw page source
+	 */
+	protected final String source;
+
+	/**
+	 * The parsed page source or null, if the source is no well-formed XML
+	 */
+	protected final Document document;
+
+	/**
+	 * True for Android page sources, false for iOS page sources
+	 */
+	protected final boolean android;
+
+	/**
+	 * The System.nanoTime() the snapshot was taken at
+	 */
+	protected final long createdNanos;
+
+	/**
+	 * All element nodes in document order
+	 */
+	protected final List<SnapshotNode> nodes = new ArrayList<SnapshotNode>();
+
+	protected final Map<Node, SnapshotNode> nodesByElement = new IdentityHashMap<Node, SnapshotNode>();
+
+	/**
+	 * Android resource ids, with and without the package prefix
+	 */
+	protected final Map<String, List<SnapshotNode>> nodesByResourceId = new HashMap<String, List<SnapshotNode>>();
+
+	/**
+	 * Android content descriptions, iOS names
+	 */
+	protected final Map<String, List<SnapshotNode>> nodesByName = new HashMap<String, List<SnapshotNode>>();
+
+	protected final Map<String, List<SnapshotNode>> nodesByClass = new HashMap<String, List<SnapshotNode>>();
+
+	/**
+	 * Android texts, iOS labels and values
+	 */
+	protected final Map<String, List<SnapshotNode>> nodesByText = new HashMap<String, List<SnapshotNode>>();
+
+	protected PageSnapshot(String source, Document document, boolean android) {
+		this.source = source;
+		this.document = document;
+		this.android = android;
+		this.createdNanos = System.nanoTime();
+		if (document != null) {
+			collect(document.getDocumentElement());
+		}
+	}
+
+	/**
+	 * Parses and indexes the given page source.
+	 */
+	public static PageSnapshot parse(String source, boolean android) {
+		if (source == null) {
+			return null;
+		}
+		Document document;
+		try {
+			DocumentBuilder documentBuilder = DOCUMENT_BUILDER.get();
+			documentBuilder.reset();
+			document = documentBuilder.parse(new InputSource(new StringReader(source)));
+		} catch (SAXException e) {
+			document = null;
+		} catch (IOException e) {
+			document = null;
+		}
+		return new PageSnapshot(source, document, android);
+	}
+
+	public String getSource() {
+		return source;
+	}
+
+	public Document getDocument() {
+		return document;
+	}
+
+	/**
+	 * Returns true, if element lookups can be answered by this snapshot.
+	 */
+	public boolean isParsed() {
+		return document != null;
+	}
+
+	public List<SnapshotNode> getNodes() {
+		return Collections.unmodifiableList(nodes);
+	}
+
+	public boolean isAndroid() {
+		return android;
+	}
+
+	public long getAgeNanos() {
+		return System.nanoTime() - createdNanos;
+	}
+
+	public boolean containsText(String text) {
+		return source.contains(text);
+	}
+
+	/**
+	 * Returns the nodes the server would return for the given strategy and
+	 * criteria in document order, or null if the strategy can not be evaluated
+	 * locally.
+	 */
+	public List<SnapshotNode> findNodes(String strategy, String criteria) {
+		if (document == null || !LOCAL_STRATEGIES.contains(strategy)) {
+			return null;
+		}
+		if ("IDENTIFIER".equals(strategy)) {
+			if (android) {
+				return union(lookup(nodesByResourceId, criteria),
+						union(lookup(nodesByName, criteria), lookup(nodesByText, criteria)));
+			}
+			return lookup(nodesByName, criteria);
+		}
+		if ("ID".equals(strategy)) {
+			return lookup(android ? nodesByResourceId : nodesByName, criteria);
+		}
+		if ("NAME".equals(strategy)) {
+			if (android) {
+				return union(lookup(nodesByName, criteria), lookup(nodesByText, criteria));
+			}
+			return lookup(nodesByName, criteria);
+		}
+		if ("ACCESSIBILITY_ID".equals(strategy)) {
+			return lookup(nodesByName, criteria);
+		}
+		return lookup(nodesByClass, criteria);
+	}
+
+	/**
+	 * Returns the nodes selected by the XPath expression in document order, or
+	 * null if the expression can not be evaluated locally.
+	 */
+	public List<SnapshotNode> findNodesByXpath(String xpath) {
+		if (document == null) {
+			return null;
+		}
+		NodeList nodeList;
+		try {
+			nodeList = (NodeList) XPATH.get().evaluate(xpath, document, XPathConstants.NODESET);
+		} catch (XPathExpressionException e) {
+			return null;
+		}
+		List<SnapshotNode> result = new ArrayList<SnapshotNode>(nodeList.getLength());
+		for (int i = 0; i < nodeList.getLength(); i++) {
+			SnapshotNode node = nodesByElement.get(nodeList.item(i));
+			if (node != null) {
+				result.add(node);
+			}
+		}
+		return result;
+	}
+
+	protected void collect(Element element) {
+		SnapshotNode node = new SnapshotNode(element, nodes.size());
+		nodes.add(node);
+		nodesByElement.put(element, node);
+		index(nodesByClass, node.getTagName(), node);
+		if (android) {
+			String resourceId = node.get("resource-id");
+			index(nodesByResourceId, resourceId, node);
+			if (resourceId != null) {
+				// Appium prefixes ids without package with the package of the app
+				int index = resourceId.indexOf(":id/");
+				if (index != -1) {
+					index(nodesByResourceId, resourceId.substring(index + 4), node);
+				}
+			}
+			index(nodesByName, node.get("content-desc"), node);
+			index(nodesByText, node.get("text"), node);
+		} else {
+			index(nodesByName, node.get("name"), node);
+			index(nodesByText, node.get("label"), node);
+			if (node.get("value") != null && !node.get("value").equals(node.get("label"))) {
+				index(nodesByText, node.get("value"), node);
+			}
+		}
+
+		for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getNodeType() == Node.ELEMENT_NODE) {
+				collect((Element) child);
+			}
+		}
+	}
+
+	protected static void index(Map<String, List<SnapshotNode>> index, String key, SnapshotNode node) {
+		if (key == null || key.length() == 0) {
+			return;
+		}
+		List<SnapshotNode> nodes = index.get(key);
+		if (nodes == null) {
+			nodes = new ArrayList<SnapshotNode>(1);
+			index.put(key, nodes);
+		}
+		nodes.add(node);
+	}
+
+	protected static List<SnapshotNode> lookup(Map<String, List<SnapshotNode>> index, String key) {
+		List<SnapshotNode> nodes = index.get(key);
+		return nodes != null ? new ArrayList<SnapshotNode>(nodes) : new ArrayList<SnapshotNode>();
+	}
+
+	/**
+	 * Merges two lists in document order and removes duplicates.
+	 */
+	protected static List<SnapshotNode> union(List<SnapshotNode> first, List<SnapshotNode> second) {
+		List<SnapshotNode> result = new ArrayList<SnapshotNode>(first.size() + second.size());
+		int i = 0;
+		int j = 0;
+		while (i < first.size() || j < second.size()) {
+			if (j == second.size() || (i < first.size() && first.get(i).ordinal < second.get(j).ordinal)) {
+				result.add(first.get(i++));
+			} else if (i == first.size() || second.get(j).ordinal < first.get(i).ordinal) {
+				result.add(second.get(j++));
+			} else {
+				result.add(first.get(i++));
+				j++;
+			}
+		}
+		return result;
+	}
+
+	protected static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDER = new ThreadLocal<DocumentBuilder>() {
+
+		@Override
+		protected DocumentBuilder initialValue() {
+			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+			factory.setNamespaceAware(false);
+			factory.setValidating(false);
+			factory.setExpandEntityReferences(false);
+			try {
+				factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+				return factory.newDocumentBuilder();
+			} catch (ParserConfigurationException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	protected static final ThreadLocal<XPath> XPATH = new ThreadLocal<XPath>() {
+
+		@Override
+		protected XPath initialValue() {
+			return XPathFactory.newInstance().newXPath();
+		}
+	};
+
+	/**
+	 * A single element of the page source.
+	 */
+	public static class SnapshotNode {
+
+		protected final Element element;
+
+		/**
+		 * Position in document order
+		 */
+		protected final int ordinal;
+
+		protected final String tag;
+
+		protected final Map<String, String> attributes;
+
+		protected SnapshotNode(Element element, int ordinal) {
+			this.element = element;
+			this.ordinal = ordinal;
+			this.tag = element.getTagName();
+			NamedNodeMap attributeNodes = element.getAttributes();
+			this.attributes = new HashMap<String, String>(attributeNodes.getLength() * 2);
+			for (int i = 0; i < attributeNodes.getLength(); i++) {
+				Node attribute = attributeNodes.item(i);
+				attributes.put(attribute.getNodeName(), attribute.getNodeValue());
+			}
+		}
+
+		public Element getElement() {
+			return element;
+		}
+
+		/**
+		 * The tag name as reported by WebElement.getTagName()
+		 */
+		public String getTagName() {
+			return attributes.containsKey("class") ? attributes.get("class") : tag;
+		}
+
+		public String get(String attribute) {
+			return attributes.get(attribute);
+		}
+
+		public Map<String, String> getAttributes() {
+			return Collections.unmodifiableMap(attributes);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package com.github.mobile.appiumlibrary.locators;
+
+import io.appium.java_client.AppiumDriver;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Session scoped cache of the base URL that key attribute lookups of links
+ * and images resolve relative URLs against. The URL is fetched lazily on the
+ * first lookup after a navigation and reused until the next action that
+ * might navigate invalidates it.
+ */
+public class UrlCache {
+
+	/**
+	 * The cached base URL or null, if it has to be fetched
+	 */
+	protected volatile String baseUrl;
+
+	/**
+	 * Incremented on every invalidation, so that a fetch racing with a
+	 * navigation does not store the old URL
+	 */
+	protected final AtomicLong generation = new AtomicLong();
+
+	protected final AtomicLong hits = new AtomicLong();
+
+	protected final AtomicLong misses = new AtomicLong();
+
+	public String getBaseUrl(AppiumDriver webDriver) {
+		String cachedBaseUrl = baseUrl;
+		if (cachedBaseUrl != null) {
+			hits.incrementAndGet();
+			return cachedBaseUrl;
+		}
+		misses.incrementAndGet();
+		long fetchedGeneration = generation.get();
+		String fetchedBaseUrl = toBaseUrl(webDriver.getCurrentUrl());
+		synchronized (this) {
+			if (generation.get() == fetchedGeneration) {
+				baseUrl = fetchedBaseUrl;
+			}
+		}
+		return fetchedBaseUrl;
+	}
+
+	public void invalidate() {
+		synchronized (this) {
+			generation.incrementAndGet();
+			baseUrl = null;
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Strips the last path segment of the URL.
+	 */
+	public static String toBaseUrl(String url) {
+		int lastIndex = url.lastIndexOf('/');
+		if (lastIndex != -1) {
+			url = url.substring(0, lastIndex);
+		}
+		return url;
+	}
+}
@@ -0,0 +1,120 @@
+package com.github.mobile.appiumlibrary.locators;
+
+import java.util.Map.Entry;
+
+import com.github.mobile.appiumlibrary.locators.ElementFinder.KeyAttrs;
+
+/**
+ * Builds the XPath expressions of the default strategy. Expressions are
+ * written into a reused thread-local buffer, so a lookup allocates only the
+ * resulting string.
+ */
+public class XpathBuilder {
+
+	/**
+	 * Buffers that grew beyond this capacity are not kept for reuse
+	 */
+	protected static final int MAX_RETAINED_CAPACITY = 4096;
+
+	protected static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(256);
+		}
+	};
+
+	/**
+	 * Returns the XPath matching the criteria of the locator against the key
+	 * attributes of its tag. The base URL is used to match relative URL
+	 * attributes and may be null, if the key attributes have none.
+	 */
+	public static String keyAttrsXpath(CompiledLocator compiledLocator, String baseUrl) {
+		KeyAttrs keyAttrs = compiledLocator.keyAttrs;
+		StringBuilder xpath = buffer();
+		xpath.append("//").append(compiledLocator.tag != null ? compiledLocator.tag : "*").append('[');
+		if (compiledLocator.constraints != null) {
+			for (Entry<String, String> entry : compiledLocator.constraints.entrySet()) {
+				xpath.append('@').append(entry.getKey()).append('=');
+				appendValue(xpath, entry.getValue());
+				xpath.append(" and ");
+			}
+		}
+		xpath.append('(');
+		String[] searchers = keyAttrs.getSearchers();
+		for (int i = 0; i < searchers.length; i++) {
+			if (i > 0) {
+				xpath.append(" or ");
+			}
+			xpath.append(searchers[i]);
+			appendValue(xpath, compiledLocator.criteria);
+		}
+		if (baseUrl != null) {
+			for (String urlSearcher : keyAttrs.getUrlSearchers()) {
+				xpath.append(" or ").append(urlSearcher);
+				appendValue(xpath, baseUrl + "/" + compiledLocator.criteria);
+			}
+		}
+		return xpath.append(")]").toString();
+	}
+
+	/**
+	 * Returns the value as XPath string literal.
+	 */
+	public static String escapeValue(String value) {
+		StringBuilder xpath = buffer();
+		appendValue(xpath, value);
+		return xpath.toString();
+	}
+
+	/**
+	 * Appends the value as XPath string literal. XPath 1.0 has no escape
+	 * sequences, so values with both quote characters are built with concat().
+	 */
+	public static void appendValue(StringBuilder xpath, String value) {
+		boolean apostrophe = value.indexOf('\'') != -1;
+		if (!apostrophe) {
+			xpath.append('\'').append(value).append('\'');
+			return;
+		}
+		if (value.indexOf('"') == -1) {
+			xpath.append('"').append(value).append('"');
+			return;
+		}
+
+		xpath.append("concat(");
+		int start = 0;
+		boolean first = true;
+		for (int i = 0; i <= value.length(); i++) {
+			if (i < value.length() && value.charAt(i) != '\'') {
+				continue;
+			}
+			if (i > start) {
+				if (!first) {
+					xpath.append(", ");
+				}
+				xpath.append('\'').append(value, start, i).append('\'');
+				first = false;
+			}
+			if (i < value.length()) {
+				if (!first) {
+					xpath.append(", ");
+				}
+				xpath.append("\"'\"");
+				first = false;
+			}
+			start = i + 1;
+		}
+		xpath.append(')');
+	}
+
+	protected static StringBuilder buffer() {
+		StringBuilder buffer = BUFFER.get();
+		if (buffer.capacity() > MAX_RETAINED_CAPACITY) {
+			buffer = new StringBuilder(256);
+			BUFFER.set(buffer);
+		}
+		buffer.setLength(0);
+		return buffer;
+	}
+}
@@ -0,0 +1,195 @@
+package com.github.mobile.appiumlibrary.utils;
+
+import io.appium.java_client.AppiumDriver;
+import io.appium.java_client.android.AndroidDriver;
+import io.appium.java_client.ios.IOSDriver;
+
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.util.Map;
+
+import org.openqa.selenium.Capabilities;
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.remote.CommandExecutor;
+import org.openqa.selenium.remote.CommandInfo;
+import org.openqa.selenium.remote.DesiredCapabilities;
+import org.openqa.selenium.remote.DriverCommand;
+import org.openqa.selenium.remote.HttpCommandExecutor;
+import org.openqa.selenium.remote.http.HttpClient;
+
+import com.github.mobile.appiumlibrary.AppiumLibraryFatalException;
+
+/**
+ * Drivers sending their commands through a given HTTP client factory, which
+ * the constructors of the java client do not accept. The drivers can also
+ * attach to a session still alive on the server instead of creating a new
+ * one, and create a new one only if it is gone.
+ */
+public class AttachableDrivers {
+
+	/**
+	 * The session id to attach to, read by the driver constructor on the
+	 * creating thread
+	 */
+	protected static final ThreadLocal<String> attachSessionId = new ThreadLocal<String>();
+
+	/**
+	 * The HTTP client factory of the driver, read by the driver constructor on
+	 * the creating thread
+	 */
+	protected static final ThreadLocal<HttpClient.Factory> httpClientFactory = new ThreadLocal<HttpClient.Factory>();
+
+	/**
+	 * The commands of the java client, see {@link #getMobileCommands()}
+	 */
+	protected static volatile Map<String, CommandInfo> mobileCommands;
+
+	/**
+	 * Creates a driver using the HTTP client factory, if not null. If the
+	 * session id is not null, the driver attaches to the session or creates a
+	 * new session, if the session is gone. See
+	 * {@link #isAttached(AppiumDriver)}.
+	 */
+	public static AppiumDriver create(String platformName, URL url, HttpClient.Factory factory, Capabilities desiredCapabilities,
+			String sessionId) {
+		attachSessionId.set(sessionId);
+		httpClientFactory.set(factory);
+		try {
+			if (platformName.equalsIgnoreCase("ios")) {
+				return new AttachableIOSDriver(url, desiredCapabilities);
+			}
+			return new AttachableAndroidDriver(url, desiredCapabilities);
+		} finally {
+			attachSessionId.remove();
+			httpClientFactory.remove();
+		}
+	}
+
+	/**
+	 * Returns true, if the driver attached to an existing session
+	 */
+	public static boolean isAttached(AppiumDriver webDriver) {
+		if (webDriver instanceof AttachableAndroidDriver) {
+			return ((AttachableAndroidDriver) webDriver).attachedCapabilities != null;
+		}
+		if (webDriver instanceof AttachableIOSDriver) {
+			return ((AttachableIOSDriver) webDriver).attachedCapabilities != null;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns an executor for the commands of the java client sent to the
+	 * server of the given executor through the HTTP client factory of the
+	 * creating thread, or null to keep the given executor.
+	 */
+	protected static CommandExecutor createCommandExecutor(CommandExecutor commandExecutor) {
+		HttpClient.Factory factory = httpClientFactory.get();
+		if (factory == null || !(commandExecutor instanceof HttpCommandExecutor)) {
+			return null;
+		}
+		return new HttpCommandExecutor(getMobileCommands(), ((HttpCommandExecutor) commandExecutor).getAddressOfRemoteServer(),
+				factory);
+	}
+
+	/**
+	 * Returns the commands the java client adds to the WebDriver protocol.
+	 * They are only available to the constructors of the java client, so they
+	 * are read once by reflection.
+	 */
+	@SuppressWarnings("unchecked")
+	protected static Map<String, CommandInfo> getMobileCommands() {
+		if (mobileCommands == null) {
+			try {
+				Method method = AppiumDriver.class.getDeclaredMethod("getMobileCommands");
+				method.setAccessible(true);
+				mobileCommands = (Map<String, CommandInfo>) method.invoke(null);
+			} catch (Exception e) {
+				throw new AppiumLibraryFatalException("Could not read the commands of the java client", e);
+			}
+		}
+		return mobileCommands;
+	}
+
+	@SuppressWarnings("unchecked")
+	protected static Capabilities toCapabilities(Object rawCapabilities) {
+		if (rawCapabilities instanceof Map) {
+			return new DesiredCapabilities((Map<String, ?>) rawCapabilities);
+		}
+		return new DesiredCapabilities();
+	}
+
+	public static class AttachableAndroidDriver extends AndroidDriver {
+
+		/**
+		 * Capabilities of the attached session, assigned while the super
+		 * constructor runs and therefore without initializer
+		 */
+		protected Capabilities attachedCapabilities;
+
+		public AttachableAndroidDriver(URL remoteAddress, Capabilities desiredCapabilities) {
+			super(remoteAddress, desiredCapabilities);
+		}
+
+		@Override
+		protected void startSession(Capabilities desiredCapabilities, Capabilities requiredCapabilities) {
+			CommandExecutor commandExecutor = createCommandExecutor(getCommandExecutor());
+			if (commandExecutor != null) {
+				setCommandExecutor(commandExecutor);
+			}
+			String sessionId = attachSessionId.get();
+			if (sessionId != null) {
+				setSessionId(sessionId);
+				try {
+					attachedCapabilities = toCapabilities(execute(DriverCommand.GET_CAPABILITIES).getValue());
+					return;
+				} catch (WebDriverException e) {
+					// the session is gone, create a new one
+				}
+			}
+			super.startSession(desiredCapabilities, requiredCapabilities);
+		}
+
+		@Override
+		public Capabilities getCapabilities() {
+			return attachedCapabilities != null ? attachedCapabilities : super.getCapabilities();
+		}
+	}
+
+	public static class AttachableIOSDriver extends IOSDriver {
+
+		/**
+		 * Capabilities of the attached session, assigned while the super
+		 * constructor runs and therefore without initializer
+		 */
+		protected Capabilities attachedCapabilities;
+
+		public AttachableIOSDriver(URL remoteAddress, Capabilities desiredCapabilities) {
+			super(remoteAddress, desiredCapabilities);
+		}
+
+		@Override
+		protected void startSession(Capabilities desiredCapabilities, Capabilities requiredCapabilities) {
+			CommandExecutor commandExecutor = createCommandExecutor(getCommandExecutor());
+			if (commandExecutor != null) {
+				setCommandExecutor(commandExecutor);
+			}
+			String sessionId = attachSessionId.get();
+			if (sessionId != null) {
+				setSessionId(sessionId);
+				try {
+					attachedCapabilities = toCapabilities(execute(DriverCommand.GET_CAPABILITIES).getValue());
+					return;
+				} catch (WebDriverException e) {
+					// the session is gone, create a new one
+				}
+			}
+			super.startSession(desiredCapabilities, requiredCapabilities);
+		}
+
+		@Override
+		public Capabilities getCapabilities() {
+			return attachedCapabilities != null ? attachedCapabilities : super.getCapabilities();
+		}
+	}
+}
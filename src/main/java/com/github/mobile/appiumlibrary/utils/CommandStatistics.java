@@ -0,0 +1,250 @@
+package com.github.mobile.appiumlibrary.utils;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.openqa.selenium.remote.http.HttpClient;
+import org.openqa.selenium.remote.http.HttpRequest;
+import org.openqa.selenium.remote.http.HttpResponse;
+
+/**
+ * Records every command sent to the Appium servers: command, session,
+ * status, bytes sent and received and latency. Keeps a latency histogram per
+ * command and per session and the most recent commands. Installed by
+ * wrapping the HTTP client factory of the drivers, see
+ * {@link #wrap(HttpClient.Factory)}.
+ */
+public class CommandStatistics {
+
+	public static final int RECENT_COMMANDS = 200;
+
+	/**
+	 * Path segments followed by an id, which is replaced by a placeholder in
+	 * command names
+	 */
+	protected static final Set<String> ID_PREFIXES = new HashSet<String>(Arrays.asList("session", "element", "window",
+			"cookie", "attribute", "css", "equals"));
+
+	/**
+	 * Path segments that are not ids even though they follow a prefix
+	 */
+	protected static final Set<String> NO_IDS = new HashSet<String>(Arrays.asList("active", "current"));
+
+	protected final ConcurrentMap<String, CommandStats> statsByCommand = new ConcurrentHashMap<String, CommandStats>();
+
+	protected final ConcurrentMap<String, LatencyHistogram> latencyBySession = new ConcurrentHashMap<String, LatencyHistogram>();
+
+	protected final AtomicReferenceArray<CommandRecord> recentCommands = new AtomicReferenceArray<CommandRecord>(RECENT_COMMANDS);
+
+	protected final AtomicLong recordedCommands = new AtomicLong();
+
+	/**
+	 * Returns a factory of HTTP clients recording the commands sent through
+	 * the clients of the given factory.
+	 */
+	public HttpClient.Factory wrap(final HttpClient.Factory factory) {
+		return new HttpClient.Factory() {
+
+			@Override
+			public HttpClient createClient(URL url) {
+				final HttpClient client = factory.createClient(url);
+				return new HttpClient() {
+
+					@Override
+					public HttpResponse execute(HttpRequest request, boolean followRedirects) throws IOException {
+						long start = System.nanoTime();
+						HttpResponse response = null;
+						try {
+							response = client.execute(request, followRedirects);
+							return response;
+						} finally {
+							record(request, response, System.nanoTime() - start);
+						}
+					}
+				};
+			}
+		};
+	}
+
+	protected void record(HttpRequest request, HttpResponse response, long nanos) {
+		CommandRecord commandRecord = new CommandRecord();
+		commandRecord.command = toCommandName(request.getMethod().name(), request.getUri());
+		commandRecord.sessionId = toSessionId(request.getUri());
+		commandRecord.status = response != null ? response.getStatus() : -1;
+		commandRecord.bytesOut = request.getContent() != null ? request.getContent().length : 0;
+		commandRecord.bytesIn = response != null && response.getContent() != null ? response.getContent().length : 0;
+		commandRecord.nanos = nanos;
+		record(commandRecord);
+	}
+
+	public void record(CommandRecord commandRecord) {
+		CommandStats commandStats = statsByCommand.get(commandRecord.command);
+		if (commandStats == null) {
+			CommandStats newCommandStats = new CommandStats();
+			commandStats = statsByCommand.putIfAbsent(commandRecord.command, newCommandStats);
+			if (commandStats == null) {
+				commandStats = newCommandStats;
+			}
+		}
+		commandStats.latency.record(commandRecord.nanos);
+		commandStats.bytesOut.addAndGet(commandRecord.bytesOut);
+		commandStats.bytesIn.addAndGet(commandRecord.bytesIn);
+		if (commandRecord.status < 200 || commandRecord.status >= 400) {
+			commandStats.errors.incrementAndGet();
+		}
+		if (commandRecord.sessionId != null) {
+			LatencyHistogram sessionLatency = latencyBySession.get(commandRecord.sessionId);
+			if (sessionLatency == null) {
+				LatencyHistogram newSessionLatency = new LatencyHistogram();
+				sessionLatency = latencyBySession.putIfAbsent(commandRecord.sessionId, newSessionLatency);
+				if (sessionLatency == null) {
+					sessionLatency = newSessionLatency;
+				}
+			}
+			sessionLatency.record(commandRecord.nanos);
+		}
+		recentCommands.set((int) (recordedCommands.getAndIncrement() % RECENT_COMMANDS), commandRecord);
+	}
+
+	/**
+	 * Returns up to count most recent commands, the oldest first
+	 */
+	public List<CommandRecord> getRecentCommands(int count) {
+		long end = recordedCommands.get();
+		long start = Math.max(end - Math.min(count, RECENT_COMMANDS), 0);
+		List<CommandRecord> commandRecords = new ArrayList<CommandRecord>();
+		for (long i = start; i < end; i++) {
+			CommandRecord commandRecord = recentCommands.get((int) (i % RECENT_COMMANDS));
+			if (commandRecord != null) {
+				commandRecords.add(commandRecord);
+			}
+		}
+		return commandRecords;
+	}
+
+	public void reset() {
+		statsByCommand.clear();
+		latencyBySession.clear();
+		for (int i = 0; i < RECENT_COMMANDS; i++) {
+			recentCommands.set(i, null);
+		}
+		recordedCommands.set(0);
+	}
+
+	/**
+	 * Returns the name of the command of a request, i.e. the method and the
+	 * path with placeholders instead of ids, e.g. `POST
+	 * /session/:id/element/:id/click`
+	 */
+	protected static String toCommandName(String method, String uri) {
+		StringBuilder command = new StringBuilder(method).append(' ');
+		String[] segments = uri.split("\\?", 2)[0].split("/");
+		boolean idExpected = false;
+		for (String segment : segments) {
+			if (segment.length() == 0) {
+				continue;
+			}
+			command.append('/');
+			if (idExpected && !NO_IDS.contains(segment)) {
+				command.append(":id");
+				idExpected = false;
+			} else {
+				command.append(segment);
+				idExpected = ID_PREFIXES.contains(segment);
+			}
+		}
+		return command.toString();
+	}
+
+	/**
+	 * Returns the session id of a request or null, e.g. for new sessions
+	 */
+	protected static String toSessionId(String uri) {
+		String[] segments = uri.split("/");
+		for (int i = 0; i < segments.length - 1; i++) {
+			if ("session".equals(segments[i])) {
+				return segments[i + 1];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the statistics of all commands, those taking most time in
+	 * total first, and of all sessions
+	 */
+	@Override
+	public String toString() {
+		List<Map.Entry<String, CommandStats>> entries = new ArrayList<Map.Entry<String, CommandStats>>(statsByCommand.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, CommandStats>>() {
+
+			@Override
+			public int compare(Map.Entry<String, CommandStats> entry1, Map.Entry<String, CommandStats> entry2) {
+				long total1 = entry1.getValue().latency.getTotalNanos();
+				long total2 = entry2.getValue().latency.getTotalNanos();
+				return total1 > total2 ? -1 : (total1 == total2 ? 0 : 1);
+			}
+		});
+		StringBuilder statistics = new StringBuilder();
+		for (Map.Entry<String, CommandStats> entry : entries) {
+			CommandStats commandStats = entry.getValue();
+			statistics.append(String.format("%s: %s, %d errors, %d bytes out, %d bytes in\n", entry.getKey(),
+					commandStats.latency, commandStats.errors.get(), commandStats.bytesOut.get(), commandStats.bytesIn.get()));
+		}
+		for (Map.Entry<String, LatencyHistogram> entry : latencyBySession.entrySet()) {
+			statistics.append(String.format("session %s: %s\n", entry.getKey(), entry.getValue()));
+		}
+		return statistics.length() > 0 ? statistics.substring(0, statistics.length() - 1) : "No commands recorded";
+	}
+
+	protected static class CommandStats {
+		protected final LatencyHistogram latency = new LatencyHistogram();
+
+		protected final AtomicLong errors = new AtomicLong();
+
+		protected final AtomicLong bytesOut = new AtomicLong();
+
+		protected final AtomicLong bytesIn = new AtomicLong();
+	}
+
+	/**
+	 * One command sent to a server
+	 */
+	public static class CommandRecord {
+		public String command;
+
+		/**
+		 * The session id on the server or null
+		 */
+		public String sessionId;
+
+		/**
+		 * HTTP status, -1 if no response was received
+		 */
+		public int status;
+
+		public long bytesOut;
+
+		public long bytesIn;
+
+		public long nanos;
+
+		@Override
+		public String toString() {
+			return String.format("%s session %s: status %d, %d bytes out, %d bytes in, %.1f ms", command, sessionId, status,
+					bytesOut, bytesIn, nanos / 1e6);
+		}
+	}
+}
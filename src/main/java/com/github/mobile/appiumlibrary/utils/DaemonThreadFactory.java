@@ -0,0 +1,41 @@
+package com.github.mobile.appiumlibrary.utils;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads, so that library thread pools never keep the
+ * JVM of Robot Framework alive.
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+
+	protected final String namePrefix;
+
+	protected final AtomicInteger threadNumber = new AtomicInteger();
+
+	public DaemonThreadFactory(String namePrefix) {
+		this.namePrefix = namePrefix;
+	}
+
+	@Override
+	public Thread newThread(Runnable runnable) {
+		Thread thread = new LibraryThread(runnable, namePrefix + "-" + threadNumber.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	/**
+	 * Returns true, if the calling thread is a worker thread of the library
+	 * rather than a thread of Robot Framework
+	 */
+	public static boolean isLibraryThread() {
+		return Thread.currentThread() instanceof LibraryThread;
+	}
+
+	protected static class LibraryThread extends Thread {
+
+		protected LibraryThread(Runnable runnable, String name) {
+			super(runnable, name);
+		}
+	}
+}
@@ -2,141 +2,829 @@ package com.github.mobile.appiumlibrary.utils;
 
 import io.appium.java_client.AppiumDriver;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Stack;
-import java.util.TreeMap;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import com.github.mobile.appiumlibrary.AppiumLibraryFatalException;
+import com.github.mobile.appiumlibrary.AppiumLibraryNonFatalException;
+import com.github.mobile.appiumlibrary.locators.ElementCache;
+import com.github.mobile.appiumlibrary.locators.PageSnapshot;
 
-
+/**
+ * Registry of the open applications. Safe to use from concurrent threads:
+ * lookups are lock-free, changes are serialized on the cache.<br>
+ * <br>
+ * By default all threads share the application opened or switched to last by
+ * any thread, as keyword calls of remote library servers run on arbitrary
+ * threads. With per thread current applications enabled, or after
+ * {@link #bindCurrentSession}, every such thread has its own current
+ * application instead. If the current application of a thread is closed by
+ * another thread, the commands of the thread fail until it opens or switches
+ * to another application.
+ */
 public class DriverCache {
-	
+
+	/**
+	 * The application opened or switched to last by any thread
+	 */
+	volatile SessionIdAliasWebDriverTuple currentSessionIdAliasWebDriverTuple;
+
+	/**
+	 * The current application of threads that opened or switched to one with
+	 * per thread current applications enabled, or that were bound to one
+	 */
+	final ThreadLocal<SessionIdAliasWebDriverTuple> threadSessionIdAliasWebDriverTuple = new ThreadLocal<SessionIdAliasWebDriverTuple>();
+
 	/**
-	 * The currently active web driver instance
+	 * Whether opening or switching to an application makes it current for the
+	 * calling thread only
 	 */
-	SessionIdAliasWebDriverTuple currentSessionIdAliasWebDriverTuple;
+	volatile boolean perThreadCurrent = false;
 
 	/**
-	 * The maximum assigned session id
+	 * The maximum assigned session id, guarded by this
 	 */
 	int maxAssignedSessionId = 0;
 
 	/**
-	 * Stack of currently open session ids to reuse
+	 * Open sessions from least to most recently used, guarded by this. The
+	 * list is linked through the tuples, so that moving a session is O(1).
 	 */
-	Stack<String> openSessionIds = new Stack<String>();
+	final SessionIdAliasWebDriverTuple openSessions = new SessionIdAliasWebDriverTuple();
 
 	/**
-	 * Stack of already closed session ids to reuse
+	 * Stack of already closed session ids to reuse, guarded by this
 	 */
-	Stack<String> closedSessionIds = new Stack<String>();
+	Deque<String> closedSessionIds = new ArrayDeque<String>();
 
 	/**
 	 * Map session ids to webdrivers
 	 */
-	Map<String, SessionIdAliasWebDriverTuple> tupleBySessionId = new TreeMap<String, SessionIdAliasWebDriverTuple>();
+	final Map<String, SessionIdAliasWebDriverTuple> tupleBySessionId = new ConcurrentHashMap<String, SessionIdAliasWebDriverTuple>();
 
 	/**
 	 * Map aliases to webdrivers
 	 */
-	Map<String, SessionIdAliasWebDriverTuple> tupleByAlias = new TreeMap<String, SessionIdAliasWebDriverTuple>();
-	
+	final Map<String, SessionIdAliasWebDriverTuple> tupleByAlias = new ConcurrentHashMap<String, SessionIdAliasWebDriverTuple>();
+
+	/**
+	 * The file the open sessions are persisted to or null, guarded by this
+	 */
+	File stateFile;
+
+	/**
+	 * Sessions of earlier runs read from the state file and not attached to
+	 * yet, guarded by this
+	 */
+	List<PersistedSession> persistedSessions = new ArrayList<PersistedSession>();
+
+	/**
+	 * Idle time after which sessions are evicted, 0 to never evict idle
+	 * sessions
+	 */
+	volatile long idleTimeoutNanos;
+
+	/**
+	 * Maximum number of open sessions, 0 for no limit
+	 */
+	volatile int maxSessions;
+
+	/**
+	 * Evicts idle sessions periodically while an idle timeout is set,
+	 * guarded by this
+	 */
+	ScheduledExecutorService evictionScheduler;
+
+	static final long MIN_EVICTION_PERIOD_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * Descriptions of the evicted sessions not logged yet
+	 */
+	final Queue<String> evictions = new ConcurrentLinkedQueue<String>();
+
+	/**
+	 * Quits the sessions of {@link #closeAll(long)} and evicted sessions
+	 * concurrently
+	 */
+	final ExecutorService closeExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("appiumlibrary-close"));
+
+	public DriverCache() {
+		openSessions.previous = openSessions;
+		openSessions.next = openSessions;
+	}
 
 	public String register(AppiumDriver webDriver, String alias) {
+		return register(webDriver, alias, null, null);
+	}
+
+	/**
+	 * Registers the session, which is persisted to the state file, if any,
+	 * when the server URL and capabilities are given.
+	 */
+	public String register(AppiumDriver webDriver, String alias, String remoteURL, String desiredCaps) {
 		// create the new tuple
-		currentSessionIdAliasWebDriverTuple = new SessionIdAliasWebDriverTuple();
-		currentSessionIdAliasWebDriverTuple.alias = alias;
-		currentSessionIdAliasWebDriverTuple.webDriver = webDriver;
-		if (closedSessionIds.size() == 0) {
-			// no closed id
-			maxAssignedSessionId++;
-			currentSessionIdAliasWebDriverTuple.id = Integer.toString(maxAssignedSessionId);
-		} else {
-			// reuse closed id
-			currentSessionIdAliasWebDriverTuple.id = closedSessionIds.pop();
-		}
+		SessionIdAliasWebDriverTuple sessionIdAliasWebDriverTuple = new SessionIdAliasWebDriverTuple();
+		sessionIdAliasWebDriverTuple.alias = alias;
+		sessionIdAliasWebDriverTuple.webDriver = webDriver;
+		sessionIdAliasWebDriverTuple.remoteURL = remoteURL;
+		sessionIdAliasWebDriverTuple.desiredCaps = desiredCaps;
+		synchronized (this) {
+			if (closedSessionIds.isEmpty()) {
+				// no closed id
+				maxAssignedSessionId++;
+				sessionIdAliasWebDriverTuple.id = Integer.toString(maxAssignedSessionId);
+			} else {
+				// reuse closed id
+				sessionIdAliasWebDriverTuple.id = closedSessionIds.pop();
+			}
 
-		// store the new tuple
-		openSessionIds.push(currentSessionIdAliasWebDriverTuple.id);
-		tupleBySessionId.put(currentSessionIdAliasWebDriverTuple.id, currentSessionIdAliasWebDriverTuple);
-		if (alias != null) {
-			tupleByAlias.put(currentSessionIdAliasWebDriverTuple.alias, currentSessionIdAliasWebDriverTuple);
+			// store the new tuple
+			moveToMostRecent(sessionIdAliasWebDriverTuple);
+			tupleBySessionId.put(sessionIdAliasWebDriverTuple.id, sessionIdAliasWebDriverTuple);
+			if (alias != null) {
+				tupleByAlias.put(sessionIdAliasWebDriverTuple.alias, sessionIdAliasWebDriverTuple);
+			}
+			setCurrent(sessionIdAliasWebDriverTuple);
+			saveState();
+		}
+		if (maxSessions > 0) {
+			evict();
 		}
-		return currentSessionIdAliasWebDriverTuple.id;
+		return sessionIdAliasWebDriverTuple.id;
 	}
 
+	/**
+	 * Returns the webdriver of the current session for sending a command,
+	 * or null. Fails fast, if the session monitor found the session dead.
+	 */
 	public AppiumDriver getCurrent() {
-		if (currentSessionIdAliasWebDriverTuple != null) {
-			return currentSessionIdAliasWebDriverTuple.webDriver;
+		SessionIdAliasWebDriverTuple sessionIdAliasWebDriverTuple = getCurrentSession();
+		if (sessionIdAliasWebDriverTuple != null) {
+			return getDriver(sessionIdAliasWebDriverTuple);
 		}
 		return null;
 	}
 
+	/**
+	 * Returns the webdriver of the session for sending a command. Fails fast,
+	 * if the session monitor found the session dead.
+	 */
+	public AppiumDriver getDriver(SessionIdAliasWebDriverTuple sessionIdAliasWebDriverTuple) {
+		if (sessionIdAliasWebDriverTuple.dead) {
+			throw new AppiumLibraryNonFatalException(String.format(
+					"Application %s is no longer alive on the server: %s", sessionIdAliasWebDriverTuple.id,
+					sessionIdAliasWebDriverTuple.deadReason));
+		}
+		sessionIdAliasWebDriverTuple.lastCommandNanos = System.nanoTime();
+		return sessionIdAliasWebDriverTuple.webDriver;
+	}
+
+	/**
+	 * Returns the current session of the calling thread or null, for sending
+	 * commands. Fails, if another thread closed it, instead of silently acting
+	 * on another application.
+	 */
+	public SessionIdAliasWebDriverTuple getCurrentSession() {
+		SessionIdAliasWebDriverTuple sessionIdAliasWebDriverTuple = threadSessionIdAliasWebDriverTuple.get();
+		if (sessionIdAliasWebDriverTuple == null) {
+			// never set
+			return currentSessionIdAliasWebDriverTuple;
+		}
+		if (sessionIdAliasWebDriverTuple.closed) {
+			throw new AppiumLibraryNonFatalException(String.format(
+					"Application %s%s was closed by another thread, open or switch to another application",
+					sessionIdAliasWebDriverTuple.id, sessionIdAliasWebDriverTuple.alias != null ? " ("
+							+ sessionIdAliasWebDriverTuple.alias + ")" : ""));
+		}
+		return sessionIdAliasWebDriverTuple;
+	}
+
+	/**
+	 * Returns the current session of the calling thread or null, without
+	 * failing. A session another thread closed is dropped, so that the
+	 * thread continues with the shared current session.
+	 */
+	public SessionIdAliasWebDriverTuple peekCurrentSession() {
+		SessionIdAliasWebDriverTuple sessionIdAliasWebDriverTuple = threadSessionIdAliasWebDriverTuple.get();
+		if (sessionIdAliasWebDriverTuple == null) {
+			return currentSessionIdAliasWebDriverTuple;
+		}
+		if (sessionIdAliasWebDriverTuple.closed) {
+			bindCurrentSession(null);
+			return currentSessionIdAliasWebDriverTuple;
+		}
+		return sessionIdAliasWebDriverTuple;
+	}
+
 	public String getCurrentSessionId() {
-		if (currentSessionIdAliasWebDriverTuple != null) {
-			return currentSessionIdAliasWebDriverTuple.id;
+		SessionIdAliasWebDriverTuple sessionIdAliasWebDriverTuple = peekCurrentSession();
+		if (sessionIdAliasWebDriverTuple != null) {
+			return sessionIdAliasWebDriverTuple.id;
 		}
 		return null;
 	}
 
+	/**
+	 * Returns the open session with the id or alias or null
+	 */
+	public SessionIdAliasWebDriverTuple getSession(String sessionIdOrAlias) {
+		SessionIdAliasWebDriverTuple sessionIdAliasWebDriverTuple = tupleByAlias.get(sessionIdOrAlias);
+		if (sessionIdAliasWebDriverTuple == null) {
+			sessionIdAliasWebDriverTuple = tupleBySessionId.get(sessionIdOrAlias);
+		}
+		return sessionIdAliasWebDriverTuple;
+	}
+
+	/**
+	 * Makes opening or switching to an application set the current
+	 * application of the calling thread only. Disabled by default, as remote
+	 * library servers run the keywords of one test on arbitrary threads.
+	 */
+	public void setPerThreadCurrent(boolean perThreadCurrent) {
+		this.perThreadCurrent = perThreadCurrent;
+	}
+
+	public boolean isPerThreadCurrent() {
+		return perThreadCurrent;
+	}
+
+	/**
+	 * Makes the session current for the calling thread only, e.g. for worker
+	 * threads acting on behalf of a keyword. Null restores the default.
+	 * Threads have to restore the default before they end, otherwise the
+	 * session is never evicted.
+	 */
+	public synchronized void bindCurrentSession(SessionIdAliasWebDriverTuple sessionIdAliasWebDriverTuple) {
+		setThreadCurrent(sessionIdAliasWebDriverTuple);
+	}
+
 	public void close() {
-		if (currentSessionIdAliasWebDriverTuple != null) {
-			// Close the webdriver and remove it from all stores
-			currentSessionIdAliasWebDriverTuple.webDriver.quit();
-			tupleBySessionId.remove(currentSessionIdAliasWebDriverTuple.id);
-			openSessionIds.remove(currentSessionIdAliasWebDriverTuple.id);
-			closedSessionIds.push(currentSessionIdAliasWebDriverTuple.id);
-			if (currentSessionIdAliasWebDriverTuple.alias != null) {
-				tupleByAlias.remove(currentSessionIdAliasWebDriverTuple.alias);
-			}
-
-			// Set the last opened webdriver as current webdriver
-			if (openSessionIds.size() != 0) {
-				currentSessionIdAliasWebDriverTuple = tupleBySessionId.get(openSessionIds.pop());
-			} else {
-				currentSessionIdAliasWebDriverTuple = null;
+		SessionIdAliasWebDriverTuple sessionIdAliasWebDriverTuple;
+		synchronized (this) {
+			sessionIdAliasWebDriverTuple = threadSessionIdAliasWebDriverTuple.get();
+			if (sessionIdAliasWebDriverTuple == null) {
+				sessionIdAliasWebDriverTuple = currentSessionIdAliasWebDriverTuple;
+			} else if (sessionIdAliasWebDriverTuple.closed) {
+				// already closed by another thread, drop it instead of closing another
+				setThreadCurrent(null);
+				return;
 			}
+			if (sessionIdAliasWebDriverTuple == null || sessionIdAliasWebDriverTuple.closed) {
+				return;
+			}
+			// remove it from all stores, so that only this thread quits it
+			unregister(sessionIdAliasWebDriverTuple);
+
+			// Set the last used webdriver as current webdriver
+			SessionIdAliasWebDriverTuple mostRecent = openSessions.previous != openSessions ? openSessions.previous : null;
+			if (isThreadCurrent()) {
+				setThreadCurrent(mostRecent);
+			}
+			if (currentSessionIdAliasWebDriverTuple == sessionIdAliasWebDriverTuple
+					|| (currentSessionIdAliasWebDriverTuple != null && currentSessionIdAliasWebDriverTuple.closed)) {
+				currentSessionIdAliasWebDriverTuple = mostRecent;
+			}
+			saveState();
 		}
+		// Close the webdriver outside the lock, it may take long
+		quit(sessionIdAliasWebDriverTuple);
 	}
 
 	public void closeAll() {
-		for (SessionIdAliasWebDriverTuple sessionIdAliasWebDriverTuple : tupleBySessionId.values()) {
+		closeAll(0);
+	}
+
+	/**
+	 * Closes all sessions concurrently and returns how long each took.
+	 * Sessions that do not close within the timeout are abandoned. The
+	 * sessions are removed from the cache in any case.
+	 * 
+	 * @param timeoutNanos
+	 *            maximum time to wait for the sessions, 0 to wait forever
+	 */
+	public List<ShutdownResult> closeAll(long timeoutNanos) {
+		Collection<SessionIdAliasWebDriverTuple> sessionIdAliasWebDriverTuples;
+		synchronized (this) {
+			sessionIdAliasWebDriverTuples = new ArrayList<SessionIdAliasWebDriverTuple>(tupleBySessionId.values());
+			for (SessionIdAliasWebDriverTuple sessionIdAliasWebDriverTuple : sessionIdAliasWebDriverTuples) {
+				sessionIdAliasWebDriverTuple.closed = true;
+			}
+			maxAssignedSessionId = 0;
+			currentSessionIdAliasWebDriverTuple = null;
+			setThreadCurrent(null);
+			openSessions.previous = openSessions;
+			openSessions.next = openSessions;
+			closedSessionIds = new ArrayDeque<String>();
+			tupleBySessionId.clear();
+			tupleByAlias.clear();
+			saveState();
+		}
+		List<ShutdownResult> shutdownResults = new ArrayList<ShutdownResult>();
+		if (sessionIdAliasWebDriverTuples.size() == 1 && timeoutNanos == 0) {
+			// nothing to gain from a thread
+			ShutdownResult shutdownResult = new ShutdownResult(sessionIdAliasWebDriverTuples.iterator().next());
+			shutdownResult.run();
+			shutdownResults.add(shutdownResult);
+			return shutdownResults;
+		}
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (SessionIdAliasWebDriverTuple sessionIdAliasWebDriverTuple : sessionIdAliasWebDriverTuples) {
+			ShutdownResult shutdownResult = new ShutdownResult(sessionIdAliasWebDriverTuple);
+			shutdownResults.add(shutdownResult);
+			futures.add(closeExecutor.submit(shutdownResult));
+		}
+		long deadline = System.nanoTime() + timeoutNanos;
+		for (Future<?> future : futures) {
+			try {
+				if (timeoutNanos == 0) {
+					future.get();
+				} else {
+					future.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+				}
+			} catch (TimeoutException e) {
+				// abandoned, reported by the result
+			} catch (ExecutionException e) {
+				// recorded by the result
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return shutdownResults;
+	}
+
+	/**
+	 * Quits the webdriver of the session or returns it to its pool.
+	 */
+	protected void quit(SessionIdAliasWebDriverTuple sessionIdAliasWebDriverTuple) {
+		if (sessionIdAliasWebDriverTuple.dead) {
+			// nothing left to quit on the server, only release the client
+			try {
+				sessionIdAliasWebDriverTuple.webDriver.quit();
+			} catch (RuntimeException e) {
+				// expected
+			}
+		} else if (sessionIdAliasWebDriverTuple.pool != null) {
+			sessionIdAliasWebDriverTuple.pool.release(sessionIdAliasWebDriverTuple.poolKey, sessionIdAliasWebDriverTuple.webDriver);
+		} else {
 			sessionIdAliasWebDriverTuple.webDriver.quit();
 		}
-		maxAssignedSessionId = 0;
-		currentSessionIdAliasWebDriverTuple = null;
-		openSessionIds = new Stack<String>();
-		closedSessionIds = new Stack<String>();
-		tupleBySessionId = new TreeMap<String, SessionIdAliasWebDriverTuple>();
-		tupleByAlias = new TreeMap<String, SessionIdAliasWebDriverTuple>();
 	}
-	
+
+	/**
+	 * Sets the idle timeout and the maximum number of open sessions, 0 to
+	 * disable either. Sessions exceeding them are evicted in the background
+	 * from the least recently used one on, except the current sessions of
+	 * all threads.
+	 */
+	public synchronized void setEvictionPolicy(long idleTimeoutNanos, int maxSessions) {
+		this.idleTimeoutNanos = idleTimeoutNanos;
+		this.maxSessions = maxSessions;
+		if (evictionScheduler != null) {
+			evictionScheduler.shutdownNow();
+			evictionScheduler = null;
+		}
+		if (idleTimeoutNanos > 0) {
+			long checkPeriodNanos = Math.max(idleTimeoutNanos / 4, MIN_EVICTION_PERIOD_NANOS);
+			evictionScheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("appiumlibrary-eviction"));
+			evictionScheduler.scheduleWithFixedDelay(new Runnable() {
+
+				@Override
+				public void run() {
+					evict();
+				}
+			}, checkPeriodNanos, checkPeriodNanos, TimeUnit.NANOSECONDS);
+		}
+		evict();
+	}
+
+	public long getIdleTimeoutNanos() {
+		return idleTimeoutNanos;
+	}
+
+	public int getMaxSessions() {
+		return maxSessions;
+	}
+
+	/**
+	 * Removes the sessions idle for longer than the idle timeout and the
+	 * least recently used sessions exceeding the maximum number, and quits
+	 * them in the background. Sessions that are current for any thread are
+	 * kept.
+	 */
+	public void evict() {
+		if (idleTimeoutNanos <= 0 && maxSessions <= 0) {
+			return;
+		}
+		final List<SessionIdAliasWebDriverTuple> evictedSessions = new ArrayList<SessionIdAliasWebDriverTuple>();
+		synchronized (this) {
+			long now = System.nanoTime();
+			SessionIdAliasWebDriverTuple next;
+			for (SessionIdAliasWebDriverTuple sessionIdAliasWebDriverTuple = openSessions.next; sessionIdAliasWebDriverTuple != openSessions; sessionIdAliasWebDriverTuple = next) {
+				next = sessionIdAliasWebDriverTuple.next;
+				if (sessionIdAliasWebDriverTuple == currentSessionIdAliasWebDriverTuple
+						|| sessionIdAliasWebDriverTuple.boundThreads > 0) {
+					continue;
+				}
+				long idleNanos = now - sessionIdAliasWebDriverTuple.lastCommandNanos;
+				String reason;
+				if (idleTimeoutNanos > 0 && idleNanos >= idleTimeoutNanos) {
+					reason = "idle timeout";
+				} else if (maxSessions > 0 && tupleBySessionId.size() > maxSessions) {
+					reason = String.format("maximum of %d open applications", maxSessions);
+				} else {
+					continue;
+				}
+				unregister(sessionIdAliasWebDriverTuple);
+				evictedSessions.add(sessionIdAliasWebDriverTuple);
+				evictions.add(String.format("Evicted application %s%s, idle for %s, due to the %s",
+						sessionIdAliasWebDriverTuple.id, sessionIdAliasWebDriverTuple.alias != null ? " ("
+								+ sessionIdAliasWebDriverTuple.alias + ")" : "", Robotframework.secsToTimestr(idleNanos / 1000000000.0), reason));
+			}
+			if (!evictedSessions.isEmpty()) {
+				saveState();
+			}
+		}
+		for (final SessionIdAliasWebDriverTuple sessionIdAliasWebDriverTuple : evictedSessions) {
+			closeExecutor.submit(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						quit(sessionIdAliasWebDriverTuple);
+					} catch (RuntimeException e) {
+						// the device is free anyway once the session is gone
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Returns and forgets the descriptions of the sessions evicted since the
+	 * last call
+	 */
+	public List<String> drainEvictions() {
+		List<String> drainedEvictions = new ArrayList<String>();
+		String eviction;
+		while ((eviction = evictions.poll()) != null) {
+			drainedEvictions.add(eviction);
+		}
+		return drainedEvictions;
+	}
+
 	public void switchApplication(String sessionIdOrAlias) {
-		SessionIdAliasWebDriverTuple sessionIdAliasWebDriverTuple = tupleByAlias.get(sessionIdOrAlias);
-		if (sessionIdAliasWebDriverTuple != null) {
-			currentSessionIdAliasWebDriverTuple = sessionIdAliasWebDriverTuple;
-			openSessionIds.remove(currentSessionIdAliasWebDriverTuple.id);
-			openSessionIds.push(currentSessionIdAliasWebDriverTuple.id);
+		synchronized (this) {
+			SessionIdAliasWebDriverTuple sessionIdAliasWebDriverTuple = getSession(sessionIdOrAlias);
+			if (sessionIdAliasWebDriverTuple != null) {
+				moveToMostRecent(sessionIdAliasWebDriverTuple);
+				setCurrent(sessionIdAliasWebDriverTuple);
+				return;
+			}
+		}
+		throw new AppiumLibraryFatalException(String.format("Non-existing index or alias '%s'", sessionIdOrAlias));
+	}
+
+	/**
+	 * Sets the file the open sessions are persisted to, so that a later run
+	 * can attach to them. Null disables persisting. Sessions already in the
+	 * file are kept in it until they are attached to.
+	 */
+	public synchronized void setStateFile(File stateFile) {
+		persistedSessions = new ArrayList<PersistedSession>();
+		this.stateFile = stateFile;
+		if (stateFile == null) {
 			return;
 		}
+		try {
+			if (stateFile.exists()) {
+				readState();
+			} else {
+				writeState();
+			}
+		} catch (IOException e) {
+			this.stateFile = null;
+			throw new AppiumLibraryNonFatalException(String.format("Could not access state file %s: %s", stateFile, e.getMessage()));
+		}
+	}
 
-		sessionIdAliasWebDriverTuple = tupleBySessionId.get(sessionIdOrAlias);
-		if (sessionIdAliasWebDriverTuple != null) {
-			currentSessionIdAliasWebDriverTuple = sessionIdAliasWebDriverTuple;
-			openSessionIds.remove(currentSessionIdAliasWebDriverTuple.id);
-			openSessionIds.push(currentSessionIdAliasWebDriverTuple.id);
+	public File getStateFile() {
+		return stateFile;
+	}
+
+	/**
+	 * Returns the sessions of earlier runs read from the state file, which
+	 * have not been attached to yet
+	 */
+	public synchronized List<PersistedSession> getPersistedSessions() {
+		return new ArrayList<PersistedSession>(persistedSessions);
+	}
+
+	/**
+	 * Removes the session of an earlier run from the state file, e.g. once
+	 * it was attached to or found to be gone.
+	 */
+	public synchronized void removePersistedSession(String sessionId) {
+		for (Iterator<PersistedSession> iterator = persistedSessions.iterator(); iterator.hasNext();) {
+			if (iterator.next().sessionId.equals(sessionId)) {
+				iterator.remove();
+			}
+		}
+		saveState();
+	}
+
+	/**
+	 * Reads the sessions of earlier runs from the state file, guarded by this.
+	 */
+	protected void readState() throws IOException {
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(stateFile);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		for (int i = 0; properties.containsKey(i + ".sessionId"); i++) {
+			PersistedSession persistedSession = new PersistedSession();
+			persistedSession.sessionId = properties.getProperty(i + ".sessionId");
+			persistedSession.alias = properties.getProperty(i + ".alias");
+			persistedSession.remoteURL = properties.getProperty(i + ".remoteURL");
+			persistedSession.desiredCaps = properties.getProperty(i + ".desiredCaps");
+			persistedSessions.add(persistedSession);
+		}
+	}
+
+	/**
+	 * Writes the open sessions to the state file, if any, guarded by this.
+	 * Failures are ignored, a stale state file only makes attaching fall
+	 * back to new sessions.
+	 */
+	protected void saveState() {
+		if (stateFile == null) {
 			return;
 		}
-		throw new AppiumLibraryFatalException(String.format("Non-existing index or alias '%s'", sessionIdOrAlias));
+		try {
+			writeState();
+		} catch (IOException e) {
+			// best effort
+		}
 	}
+
+	/**
+	 * Writes the open sessions and the sessions of earlier runs not attached
+	 * to yet to the state file, guarded by this. Sessions without server URL
+	 * are skipped.
+	 */
+	protected void writeState() throws IOException {
+		Properties properties = new Properties();
+		int i = 0;
+		for (SessionIdAliasWebDriverTuple sessionIdAliasWebDriverTuple = openSessions.next; sessionIdAliasWebDriverTuple != openSessions; sessionIdAliasWebDriverTuple = sessionIdAliasWebDriverTuple.next) {
+			if (sessionIdAliasWebDriverTuple.remoteURL == null || sessionIdAliasWebDriverTuple.webDriver.getSessionId() == null) {
+				continue;
+			}
+			properties.setProperty(i + ".sessionId", sessionIdAliasWebDriverTuple.webDriver.getSessionId().toString());
+			if (sessionIdAliasWebDriverTuple.alias != null) {
+				properties.setProperty(i + ".alias", sessionIdAliasWebDriverTuple.alias);
+			}
+			properties.setProperty(i + ".remoteURL", sessionIdAliasWebDriverTuple.remoteURL);
+			properties.setProperty(i + ".desiredCaps", sessionIdAliasWebDriverTuple.desiredCaps);
+			i++;
+		}
+		for (PersistedSession persistedSession : persistedSessions) {
+			properties.setProperty(i + ".sessionId", persistedSession.sessionId);
+			if (persistedSession.alias != null) {
+				properties.setProperty(i + ".alias", persistedSession.alias);
+			}
+			properties.setProperty(i + ".remoteURL", persistedSession.remoteURL);
+			properties.setProperty(i + ".desiredCaps", persistedSession.desiredCaps);
+			i++;
+		}
+		// write a temporary file first, so that a killed run never leaves a
+		// truncated state file
+		File temporaryFile = new File(stateFile.getPath() + ".tmp");
+		OutputStream out = new FileOutputStream(temporaryFile);
+		try {
+			properties.store(out, "Appium sessions of AppiumLibrary");
+		} finally {
+			out.close();
+		}
+		if (!temporaryFile.renameTo(stateFile)) {
+			stateFile.delete();
+			if (!temporaryFile.renameTo(stateFile)) {
+				throw new IOException("Could not rename " + temporaryFile);
+			}
+		}
+	}
+
 	public Collection<SessionIdAliasWebDriverTuple> getWebDrivers() {
-		return tupleBySessionId.values();
+		return new ArrayList<SessionIdAliasWebDriverTuple>(tupleBySessionId.values());
+	}
+
+	/**
+	 * Removes the open session from all stores, guarded by this.
+	 */
+	protected void unregister(SessionIdAliasWebDriverTuple sessionIdAliasWebDriverTuple) {
+		sessionIdAliasWebDriverTuple.closed = true;
+		tupleBySessionId.remove(sessionIdAliasWebDriverTuple.id);
+		unlink(sessionIdAliasWebDriverTuple);
+		closedSessionIds.push(sessionIdAliasWebDriverTuple.id);
+		if (sessionIdAliasWebDriverTuple.alias != null) {
+			tupleByAlias.remove(sessionIdAliasWebDriverTuple.alias);
+		}
+	}
+
+	protected void setCurrent(SessionIdAliasWebDriverTuple sessionIdAliasWebDriverTuple) {
+		if (isThreadCurrent()) {
+			setThreadCurrent(sessionIdAliasWebDriverTuple);
+		}
+		currentSessionIdAliasWebDriverTuple = sessionIdAliasWebDriverTuple;
+	}
+
+	/**
+	 * Whether the calling thread has its own current session
+	 */
+	protected boolean isThreadCurrent() {
+		return perThreadCurrent || threadSessionIdAliasWebDriverTuple.get() != null;
+	}
+
+	/**
+	 * Sets the current session of the calling thread and counts the threads
+	 * the sessions are current for, guarded by this.
+	 */
+	protected void setThreadCurrent(SessionIdAliasWebDriverTuple sessionIdAliasWebDriverTuple) {
+		SessionIdAliasWebDriverTuple previous = threadSessionIdAliasWebDriverTuple.get();
+		if (previous == sessionIdAliasWebDriverTuple) {
+			return;
+		}
+		if (previous != null) {
+			previous.boundThreads--;
+		}
+		if (sessionIdAliasWebDriverTuple == null) {
+			threadSessionIdAliasWebDriverTuple.remove();
+		} else {
+			sessionIdAliasWebDriverTuple.boundThreads++;
+			threadSessionIdAliasWebDriverTuple.set(sessionIdAliasWebDriverTuple);
+		}
 	}
-	
+
+	/**
+	 * Moves the open session to the end of the LRU list, guarded by this.
+	 */
+	protected void moveToMostRecent(SessionIdAliasWebDriverTuple sessionIdAliasWebDriverTuple) {
+		if (sessionIdAliasWebDriverTuple.next != null) {
+			unlink(sessionIdAliasWebDriverTuple);
+		}
+		sessionIdAliasWebDriverTuple.previous = openSessions.previous;
+		sessionIdAliasWebDriverTuple.next = openSessions;
+		openSessions.previous.next = sessionIdAliasWebDriverTuple;
+		openSessions.previous = sessionIdAliasWebDriverTuple;
+	}
+
+	protected void unlink(SessionIdAliasWebDriverTuple sessionIdAliasWebDriverTuple) {
+		sessionIdAliasWebDriverTuple.previous.next = sessionIdAliasWebDriverTuple.next;
+		sessionIdAliasWebDriverTuple.next.previous = sessionIdAliasWebDriverTuple.previous;
+		sessionIdAliasWebDriverTuple.previous = null;
+		sessionIdAliasWebDriverTuple.next = null;
+	}
+
+	/**
+	 * Outcome of closing one session by {@link DriverCache#closeAll(long)}
+	 */
+	public class ShutdownResult implements Runnable {
+		public final String id;
+		public final String alias;
+		final SessionIdAliasWebDriverTuple sessionIdAliasWebDriverTuple;
+		volatile long startNanos;
+		/**
+		 * Time it took to close the session, -1 while not done
+		 */
+		volatile long shutdownNanos = -1;
+		volatile RuntimeException failure;
+
+		ShutdownResult(SessionIdAliasWebDriverTuple sessionIdAliasWebDriverTuple) {
+			this.id = sessionIdAliasWebDriverTuple.id;
+			this.alias = sessionIdAliasWebDriverTuple.alias;
+			this.sessionIdAliasWebDriverTuple = sessionIdAliasWebDriverTuple;
+		}
+
+		@Override
+		public void run() {
+			startNanos = System.nanoTime();
+			try {
+				quit(sessionIdAliasWebDriverTuple);
+			} catch (RuntimeException e) {
+				failure = e;
+			}
+			shutdownNanos = System.nanoTime() - startNanos;
+		}
+
+		/**
+		 * Returns false, if the session was abandoned because it did not close
+		 * in time
+		 */
+		public boolean isDone() {
+			return shutdownNanos >= 0;
+		}
+
+		public long getShutdownNanos() {
+			return shutdownNanos;
+		}
+
+		/**
+		 * Returns the error quitting the session or null
+		 */
+		public RuntimeException getFailure() {
+			return failure;
+		}
+	}
+
+	/**
+	 * A session read from the state file
+	 */
+	public static class PersistedSession {
+		public String sessionId;
+		public String alias;
+		public String remoteURL;
+		public String desiredCaps;
+	}
+
 	public static class SessionIdAliasWebDriverTuple {
 		public String id;
 		public String alias;
 		public AppiumDriver webDriver;
+		/**
+		 * Server URL and capabilities the session was opened with, if known
+		 */
+		public String remoteURL;
+		public String desiredCaps;
+		public ElementCache elementCache = new ElementCache();
+		public volatile PageSnapshot pageSnapshot;
+		/**
+		 * The implicit wait in seconds last set on the server
+		 */
+		public volatile double implicitWait = 0;
+		/**
+		 * Set once the session is closed, so that threads still referring to
+		 * it fail instead of using it
+		 */
+		public volatile boolean closed;
+		/**
+		 * Time of the last command sent to the session, see
+		 * {@link SessionMonitor}
+		 */
+		public volatile long lastCommandNanos = System.nanoTime();
+		/**
+		 * Time of the last keepalive, which does not count as use of the
+		 * session for eviction
+		 */
+		public volatile long lastKeepaliveNanos = System.nanoTime();
+		/**
+		 * Round trip time of the last keepalive, -1 if none was sent
+		 */
+		public volatile long lastLatencyNanos = -1;
+		/**
+		 * Set once keepalives failed repeatedly, so that keywords fail fast
+		 * instead of waiting for the HTTP timeout
+		 */
+		public volatile boolean dead;
+		public volatile String deadReason;
+		public volatile int keepaliveFailures;
+		/**
+		 * The pool the webdriver was leased from, if any
+		 */
+		public SessionPool pool;
+		public String poolKey;
+		/**
+		 * Number of threads the session is current for, which keeps it from
+		 * being evicted, guarded by the cache
+		 */
+		int boundThreads;
+		/**
+		 * Neighbours in the LRU list of open sessions, guarded by the cache
+		 */
+		SessionIdAliasWebDriverTuple previous;
+		SessionIdAliasWebDriverTuple next;
 	}
 }
@@ -0,0 +1,107 @@
+package com.github.mobile.appiumlibrary.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Latency histograms of the top-level keyword calls by keyword and by
+ * application, recorded by the keyword timing aspect. There is one instance
+ * per JVM, like the aspect.
+ */
+public class KeywordStatistics {
+
+	protected static final KeywordStatistics INSTANCE = new KeywordStatistics();
+
+	protected final ConcurrentMap<String, LatencyHistogram> latencyByKeyword = new ConcurrentHashMap<String, LatencyHistogram>();
+
+	protected final ConcurrentMap<String, LatencyHistogram> latencyBySession = new ConcurrentHashMap<String, LatencyHistogram>();
+
+	protected KeywordStatistics() {
+	}
+
+	public static KeywordStatistics getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Records a call of the keyword, given by its method name, on the
+	 * application with the index
+	 */
+	public void record(String methodName, String sessionId, long nanos) {
+		getHistogram(latencyByKeyword, toKeywordName(methodName)).record(nanos);
+		if (sessionId != null) {
+			getHistogram(latencyBySession, sessionId).record(nanos);
+		}
+	}
+
+	public void reset() {
+		latencyByKeyword.clear();
+		latencyBySession.clear();
+	}
+
+	protected static LatencyHistogram getHistogram(ConcurrentMap<String, LatencyHistogram> histograms, String key) {
+		LatencyHistogram histogram = histograms.get(key);
+		if (histogram == null) {
+			LatencyHistogram newHistogram = new LatencyHistogram();
+			histogram = histograms.putIfAbsent(key, newHistogram);
+			if (histogram == null) {
+				histogram = newHistogram;
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Returns the keyword name of a method name, e.g. `Tap Element` for
+	 * `tapElement`
+	 */
+	protected static String toKeywordName(String methodName) {
+		StringBuilder keywordName = new StringBuilder(methodName.length() + 4);
+		for (int i = 0; i < methodName.length(); i++) {
+			char c = methodName.charAt(i);
+			if (i == 0) {
+				keywordName.append(Character.toUpperCase(c));
+			} else if (Character.isUpperCase(c) && !Character.isUpperCase(methodName.charAt(i - 1))) {
+				keywordName.append(' ').append(c);
+			} else {
+				keywordName.append(c);
+			}
+		}
+		return keywordName.toString();
+	}
+
+	/**
+	 * Returns the summary table, the keywords taking most time in total
+	 * first, followed by the applications
+	 */
+	@Override
+	public String toString() {
+		StringBuilder summary = new StringBuilder();
+		for (Map.Entry<String, LatencyHistogram> entry : sortByTotal(latencyByKeyword)) {
+			summary.append(String.format("%s: %s\n", entry.getKey(), entry.getValue()));
+		}
+		for (Map.Entry<String, LatencyHistogram> entry : sortByTotal(latencyBySession)) {
+			summary.append(String.format("application %s: %s\n", entry.getKey(), entry.getValue()));
+		}
+		return summary.length() > 0 ? summary.substring(0, summary.length() - 1) : "No keywords recorded";
+	}
+
+	protected static List<Map.Entry<String, LatencyHistogram>> sortByTotal(Map<String, LatencyHistogram> histograms) {
+		List<Map.Entry<String, LatencyHistogram>> entries = new ArrayList<Map.Entry<String, LatencyHistogram>>(histograms.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, LatencyHistogram>>() {
+
+			@Override
+			public int compare(Map.Entry<String, LatencyHistogram> entry1, Map.Entry<String, LatencyHistogram> entry2) {
+				long total1 = entry1.getValue().getTotalNanos();
+				long total2 = entry2.getValue().getTotalNanos();
+				return total1 > total2 ? -1 : (total1 == total2 ? 0 : 1);
+			}
+		});
+		return entries;
+	}
+}
@@ -0,0 +1,112 @@
+package com.github.mobile.appiumlibrary.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies with logarithmic buckets of four linear
+ * sub-buckets each, i.e. an error of at most 25%, from 1 microsecond to
+ * days. Recording never blocks, so it can be done on every command.
+ */
+public class LatencyHistogram {
+
+	protected static final int SUB_BUCKET_BITS = 2;
+
+	protected static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	protected static final int BUCKETS = 64 * SUB_BUCKETS;
+
+	protected final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	protected final AtomicLong count = new AtomicLong();
+
+	protected final AtomicLong totalNanos = new AtomicLong();
+
+	protected final AtomicLong maxNanos = new AtomicLong();
+
+	public void record(long nanos) {
+		long micros = Math.max(TimeUnit.NANOSECONDS.toMicros(nanos), 0);
+		counts.incrementAndGet(toIndex(micros));
+		count.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+			// retry with the new maximum
+		}
+	}
+
+	/**
+	 * Clears the histogram. Values recorded concurrently may be lost.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		totalNanos.set(0);
+		maxNanos.set(0);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getTotalNanos() {
+		return totalNanos.get();
+	}
+
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	/**
+	 * Returns the upper bound of the bucket holding the percentile, e.g. 0.99
+	 */
+	public long getPercentileNanos(double percentile) {
+		long total = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(percentile * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(TimeUnit.MICROSECONDS.toNanos(toUpperBound(i)), maxNanos.get());
+			}
+		}
+		return maxNanos.get();
+	}
+
+	protected static int toIndex(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return Math.min((exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket, BUCKETS - 1);
+	}
+
+	protected static long toUpperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long lowerBound = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+		return lowerBound + (1L << shift) - 1;
+	}
+
+	@Override
+	public String toString() {
+		long n = count.get();
+		return String.format("%d calls, %d ms total, %.1f ms average, %.1f ms p50, %.1f ms p90, %.1f ms p99, %.1f ms max", n,
+				TimeUnit.NANOSECONDS.toMillis(totalNanos.get()), n > 0 ? totalNanos.get() / 1e6 / n : 0.0,
+				getPercentileNanos(0.5) / 1e6, getPercentileNanos(0.9) / 1e6, getPercentileNanos(0.99) / 1e6, maxNanos.get() / 1e6);
+	}
+}
@@ -0,0 +1,116 @@
+package com.github.mobile.appiumlibrary.utils;
+
+import com.github.mobile.appiumlibrary.AppiumLibraryNonFatalException;
+
+/**
+ * Decides how long the waiting keywords sleep between two checks of their
+ * condition. Policies are created from specifications of the form:<br>
+ * <ul>
+ * <li><b>fixed:interval</b> polls at a fixed interval</li>
+ * <li><b>exponential:initial:max</b> doubles the interval after every poll,
+ * up to max</li>
+ * <li><b>fast:interval:count:max</b> polls count times at the interval, then
+ * doubles it up to max</li>
+ * </ul>
+ * A plain time string is the same as a fixed policy.
+ */
+public abstract class PollPolicy {
+
+	public static final String DEFAULT = "fixed:200ms";
+
+	protected static final long NANOS_PER_SECOND = 1000000000L;
+
+	protected final String spec;
+
+	protected PollPolicy(String spec) {
+		this.spec = spec;
+	}
+
+	/**
+	 * Returns the time to sleep after the given number of unsuccessful polls.
+	 */
+	public abstract long getDelayNanos(int polls);
+
+	public static PollPolicy parse(String spec) {
+		String[] parts = spec.trim().split(":");
+		String type = parts[0].trim().toLowerCase();
+		try {
+			if (type.equals("fixed") && parts.length == 2) {
+				return new Fixed(spec, toNanos(parts[1]));
+			}
+			if (type.equals("exponential") && parts.length == 3) {
+				return new FastStart(spec, toNanos(parts[1]), 0, toNanos(parts[2]));
+			}
+			if (type.equals("fast") && parts.length == 4) {
+				return new FastStart(spec, toNanos(parts[1]), Integer.parseInt(parts[2].trim()), toNanos(parts[3]));
+			}
+			if (parts.length == 1) {
+				return new Fixed(spec, toNanos(spec));
+			}
+		} catch (NumberFormatException e) {
+			// reported below
+		} catch (AppiumLibraryNonFatalException e) {
+			// reported below
+		}
+		throw new AppiumLibraryNonFatalException(String.format("Poll policy '%s' is invalid, use fixed:interval, "
+				+ "exponential:initial:max or fast:interval:count:max", spec));
+	}
+
+	protected static long toNanos(String timestr) {
+		long nanos = (long) (Robotframework.timestrToSecs(timestr.trim()) * NANOS_PER_SECOND);
+		if (nanos < 0) {
+			throw new NumberFormatException(timestr);
+		}
+		return nanos;
+	}
+
+	@Override
+	public String toString() {
+		return spec;
+	}
+
+	protected static class Fixed extends PollPolicy {
+
+		protected final long intervalNanos;
+
+		protected Fixed(String spec, long intervalNanos) {
+			super(spec);
+			this.intervalNanos = intervalNanos;
+		}
+
+		@Override
+		public long getDelayNanos(int polls) {
+			return intervalNanos;
+		}
+	}
+
+	/**
+	 * Polls fastPolls times at the initial interval, then doubles the interval
+	 * up to the maximum. Without fast polls this is an exponential back-off.
+	 */
+	protected static class FastStart extends PollPolicy {
+
+		protected final long initialNanos;
+
+		protected final int fastPolls;
+
+		protected final long maxNanos;
+
+		protected FastStart(String spec, long initialNanos, int fastPolls, long maxNanos) {
+			super(spec);
+			this.initialNanos = initialNanos;
+			this.fastPolls = fastPolls;
+			this.maxNanos = maxNanos;
+		}
+
+		@Override
+		public long getDelayNanos(int polls) {
+			if (polls <= fastPolls) {
+				return Math.min(initialNanos, maxNanos);
+			}
+			int doublings = Math.min(polls - Math.max(fastPolls, 1), 30);
+			long delay = initialNanos << doublings;
+			return delay < 0 || delay > maxNanos ? maxNanos : delay;
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package com.github.mobile.appiumlibrary.utils;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.LaxRedirectStrategy;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
+import org.openqa.selenium.remote.http.HttpClient;
+import org.openqa.selenium.remote.http.HttpMethod;
+import org.openqa.selenium.remote.http.HttpRequest;
+import org.openqa.selenium.remote.http.HttpResponse;
+
+import com.github.mobile.appiumlibrary.AppiumLibraryNonFatalException;
+
+/**
+ * HTTP transport for driver commands sharing one pool of keep-alive
+ * connections between all sessions, so that commands to the same server
+ * reuse connections instead of setting up TCP and TLS again.<br>
+ * <br>
+ * The connect and read timeouts can be overridden per command, e.g. to
+ * allow session creation more time than element lookups.
+ */
+public class PooledHttpTransport implements HttpClient.Factory {
+
+	/**
+	 * Time an idle connection is kept in the pool
+	 */
+	protected static final long IDLE_CONNECTION_TIMEOUT_SECONDS = 60;
+
+	protected final PoolingHttpClientConnectionManager connectionManager;
+
+	protected final CloseableHttpClient httpClient;
+
+	protected final int connectTimeoutMillis;
+
+	protected final int readTimeoutMillis;
+
+	/**
+	 * Timeouts by command, see {@link #setCommandTimeout(String, int, int)}
+	 */
+	protected final Map<String, CommandTimeout> commandTimeouts = new ConcurrentHashMap<String, CommandTimeout>();
+
+	/**
+	 * The servers clients were created for, whose connections are listed by
+	 * {@link #toString()}
+	 */
+	protected final Set<HttpRoute> routes = Collections.newSetFromMap(new ConcurrentHashMap<HttpRoute, Boolean>());
+
+	protected final AtomicLong requests = new AtomicLong();
+
+	protected final AtomicLong failures = new AtomicLong();
+
+	public PooledHttpTransport(int connectTimeoutMillis, int readTimeoutMillis, boolean compression, int maxConnectionsPerServer) {
+		this.connectTimeoutMillis = connectTimeoutMillis;
+		this.readTimeoutMillis = readTimeoutMillis;
+		connectionManager = new PoolingHttpClientConnectionManager(IDLE_CONNECTION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		connectionManager.setDefaultMaxPerRoute(maxConnectionsPerServer);
+		connectionManager.setMaxTotal(Math.max(maxConnectionsPerServer * 10, 100));
+		HttpClientBuilder builder = HttpClientBuilder.create().setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(createRequestConfig(connectTimeoutMillis, readTimeoutMillis, true))
+				// commands are not idempotent, never send them twice
+				.disableAutomaticRetries()
+				// new session requests are redirected with 303 by some grids
+				.setRedirectStrategy(new LaxRedirectStrategy());
+		if (!compression) {
+			builder.disableContentCompression();
+		}
+		httpClient = builder.build();
+	}
+
+	/**
+	 * Overrides the connect and read timeouts of a command, which is given as
+	 * HTTP method and the end of its path, e.g. `POST /session` for session
+	 * creation or `GET /source` for the page source.
+	 */
+	public void setCommandTimeout(String command, int connectTimeoutMillis, int readTimeoutMillis) {
+		commandTimeouts.put(normalizeCommand(command), new CommandTimeout(connectTimeoutMillis, readTimeoutMillis));
+	}
+
+	/**
+	 * Overrides the read timeout of a command, which keeps the default
+	 * connect timeout
+	 */
+	public void setCommandTimeout(String command, int readTimeoutMillis) {
+		setCommandTimeout(command, connectTimeoutMillis, readTimeoutMillis);
+	}
+
+	@Override
+	public HttpClient createClient(final URL url) {
+		final String baseUrl = url.toString().replaceAll("/+$", "");
+		// the route the connection manager pools https connections by is secure
+		HttpHost host = new HttpHost(url.getHost(), url.getPort() != -1 ? url.getPort() : url.getDefaultPort(), url.getProtocol());
+		routes.add(new HttpRoute(host, null, "https".equalsIgnoreCase(url.getProtocol())));
+		return new HttpClient() {
+
+			@Override
+			public HttpResponse execute(HttpRequest request, boolean followRedirects) throws IOException {
+				return PooledHttpTransport.this.execute(baseUrl, request, followRedirects);
+			}
+		};
+	}
+
+	protected HttpResponse execute(String baseUrl, HttpRequest request, boolean followRedirects) throws IOException {
+		requests.incrementAndGet();
+		HttpRequestBase httpRequest = createHttpRequest(URI.create(baseUrl + request.getUri()), request);
+		CommandTimeout commandTimeout = getCommandTimeout(request);
+		httpRequest.setConfig(commandTimeout != null ? createRequestConfig(commandTimeout.connectTimeoutMillis,
+				commandTimeout.readTimeoutMillis, followRedirects) : createRequestConfig(connectTimeoutMillis, readTimeoutMillis,
+				followRedirects));
+		CloseableHttpResponse httpResponse;
+		try {
+			httpResponse = httpClient.execute(httpRequest);
+		} catch (IOException e) {
+			failures.incrementAndGet();
+			throw e;
+		}
+		try {
+			HttpResponse response = new HttpResponse();
+			response.setStatus(httpResponse.getStatusLine().getStatusCode());
+			for (Header header : httpResponse.getAllHeaders()) {
+				response.addHeader(header.getName(), header.getValue());
+			}
+			HttpEntity entity = httpResponse.getEntity();
+			if (entity != null) {
+				// reading the entity completely returns the connection to the pool
+				response.setContent(EntityUtils.toByteArray(entity));
+			}
+			return response;
+		} finally {
+			httpResponse.close();
+		}
+	}
+
+	protected HttpRequestBase createHttpRequest(URI uri, HttpRequest request) {
+		HttpRequestBase httpRequest;
+		if (request.getMethod() == HttpMethod.POST) {
+			HttpPost post = new HttpPost(uri);
+			byte[] content = request.getContent();
+			if (content != null) {
+				post.setEntity(new ByteArrayEntity(content));
+			}
+			httpRequest = post;
+		} else if (request.getMethod() == HttpMethod.DELETE) {
+			httpRequest = new HttpDelete(uri);
+		} else {
+			httpRequest = new HttpGet(uri);
+		}
+		for (String name : request.getHeaderNames()) {
+			// the entity sets the length itself
+			if ("Content-Length".equalsIgnoreCase(name)) {
+				continue;
+			}
+			for (String value : request.getHeaders(name)) {
+				httpRequest.addHeader(name, value);
+			}
+		}
+		return httpRequest;
+	}
+
+	/**
+	 * Returns the timeouts set for the command of the request or null
+	 */
+	protected CommandTimeout getCommandTimeout(HttpRequest request) {
+		if (commandTimeouts.isEmpty()) {
+			return null;
+		}
+		String uri = request.getUri();
+		for (Map.Entry<String, CommandTimeout> commandTimeout : commandTimeouts.entrySet()) {
+			String command = commandTimeout.getKey();
+			int separator = command.indexOf(' ');
+			if (command.substring(0, separator).equals(request.getMethod().name())
+					&& uri.endsWith(command.substring(separator + 1))) {
+				return commandTimeout.getValue();
+			}
+		}
+		return null;
+	}
+
+	protected static RequestConfig createRequestConfig(int connectTimeoutMillis, int socketTimeoutMillis, boolean followRedirects) {
+		// pooled connections closed by the server are detected before reuse
+		return RequestConfig.custom().setConnectTimeout(connectTimeoutMillis).setConnectionRequestTimeout(connectTimeoutMillis)
+				.setSocketTimeout(socketTimeoutMillis).setRedirectsEnabled(followRedirects).setStaleConnectionCheckEnabled(true)
+				.build();
+	}
+
+	protected static String normalizeCommand(String command) {
+		String[] methodAndPath = command.trim().split("\\s+", 2);
+		if (methodAndPath.length < 2) {
+			throw new AppiumLibraryNonFatalException(String.format("Command must be given as method and path, but is '%s'", command));
+		}
+		return methodAndPath[0].toUpperCase() + " " + methodAndPath[1];
+	}
+
+	/**
+	 * Closes the pooled connections. Drivers still using the transport fail
+	 * afterwards.
+	 */
+	public void close() {
+		try {
+			httpClient.close();
+		} catch (IOException e) {
+			// nothing left to release
+		}
+		connectionManager.shutdown();
+	}
+
+	@Override
+	public String toString() {
+		PoolStats totalStats = connectionManager.getTotalStats();
+		StringBuilder statistics = new StringBuilder(String.format(
+				"%d requests, %d failures, %d leased, %d idle, %d pending connections", requests.get(), failures.get(),
+				totalStats.getLeased(), totalStats.getAvailable(), totalStats.getPending()));
+		for (HttpRoute route : routes) {
+			PoolStats routeStats = connectionManager.getStats(route);
+			statistics.append(String.format("\n%s: %d leased, %d idle, %d pending, max %d", route.getTargetHost().toURI(),
+					routeStats.getLeased(), routeStats.getAvailable(), routeStats.getPending(), routeStats.getMax()));
+		}
+		return statistics.toString();
+	}
+
+	protected static class CommandTimeout {
+		protected final int connectTimeoutMillis;
+
+		protected final int readTimeoutMillis;
+
+		protected CommandTimeout(int connectTimeoutMillis, int readTimeoutMillis) {
+			this.connectTimeoutMillis = connectTimeoutMillis;
+			this.readTimeoutMillis = readTimeoutMillis;
+		}
+	}
+}
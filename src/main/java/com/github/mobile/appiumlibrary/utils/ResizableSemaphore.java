@@ -0,0 +1,37 @@
+package com.github.mobile.appiumlibrary.utils;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Fair semaphore whose number of permits can be changed while permits are
+ * held. Reducing it lets the holders finish, only new acquirers wait until
+ * the permits in use drop below the new number.
+ */
+public class ResizableSemaphore extends Semaphore {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Total number of permits, guarded by this
+	 */
+	protected int size;
+
+	public ResizableSemaphore(int size) {
+		super(size, true);
+		this.size = size;
+	}
+
+	public synchronized void resize(int size) {
+		int delta = size - this.size;
+		this.size = size;
+		if (delta > 0) {
+			release(delta);
+		} else if (delta < 0) {
+			reducePermits(-delta);
+		}
+	}
+
+	public synchronized int getSize() {
+		return size;
+	}
+}
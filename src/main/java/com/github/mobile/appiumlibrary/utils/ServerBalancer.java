@@ -0,0 +1,208 @@
+package com.github.mobile.appiumlibrary.utils;
+
+import io.appium.java_client.AppiumDriver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.github.mobile.appiumlibrary.AppiumLibraryNonFatalException;
+
+/**
+ * Picks the Appium server to open an application on from several servers.
+ * Servers are probed by their `/status` endpoint concurrently, and the
+ * results are cached for a short time, so that opening several applications
+ * does not probe again every time.
+ */
+public class ServerBalancer {
+
+	/**
+	 * Time a probe result or a failed session creation is trusted
+	 */
+	public static final long HEALTH_TTL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+	public static final int PROBE_TIMEOUT_MILLIS = 2000;
+
+	protected static final String SERVER_LIST_PREFIX = "servers:";
+
+	protected final ExecutorService probeExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory(
+			"appiumlibrary-probe"));
+
+	protected final Map<String, Health> healthByServer = new ConcurrentHashMap<String, Health>();
+
+	/**
+	 * Server lists registered by name
+	 */
+	protected final Map<String, List<String>> serverLists = new ConcurrentHashMap<String, List<String>>();
+
+	/**
+	 * The server each driver was created on
+	 */
+	protected final Map<AppiumDriver, String> serverByDriver = new WeakHashMap<AppiumDriver, String>();
+
+	public void registerServers(String name, List<String> servers) {
+		serverLists.put(name, new ArrayList<String>(servers));
+	}
+
+	/**
+	 * Returns the servers of a remote URL, which is either a single URL,
+	 * several URLs separated by `|` or `servers:name` of a registered list.
+	 */
+	public List<String> getServers(String remoteURL) {
+		String trimmedURL = remoteURL.trim();
+		if (trimmedURL.startsWith(SERVER_LIST_PREFIX)) {
+			String name = trimmedURL.substring(SERVER_LIST_PREFIX.length());
+			List<String> servers = serverLists.get(name);
+			if (servers == null) {
+				throw new AppiumLibraryNonFatalException(String.format("No Appium servers registered as '%s'", name));
+			}
+			return servers;
+		}
+		List<String> servers = new ArrayList<String>();
+		for (String server : trimmedURL.split("\\s*\\|\\s*")) {
+			if (server.length() > 0) {
+				servers.add(server);
+			}
+		}
+		return servers;
+	}
+
+	/**
+	 * Returns the servers ordered by preference: healthy servers with the
+	 * fewest sessions first and, among those, the fastest responding ones.
+	 * Unhealthy servers follow as last resort. Servers not probed with
+	 * {@link #probe(List)} before count as unhealthy.
+	 *
+	 * @param loads
+	 *            number of sessions on each server
+	 */
+	public List<String> rank(List<String> servers, final Map<String, Integer> loads) {
+		List<String> healthyServers = new ArrayList<String>();
+		List<String> unhealthyServers = new ArrayList<String>();
+		for (String server : servers) {
+			Health health = healthByServer.get(server);
+			if (health != null && health.healthy) {
+				healthyServers.add(server);
+			} else {
+				unhealthyServers.add(server);
+			}
+		}
+		Collections.sort(healthyServers, new Comparator<String>() {
+
+			@Override
+			public int compare(String server1, String server2) {
+				int load1 = loads.containsKey(server1) ? loads.get(server1) : 0;
+				int load2 = loads.containsKey(server2) ? loads.get(server2) : 0;
+				if (load1 != load2) {
+					return load1 < load2 ? -1 : 1;
+				}
+				long latency1 = healthByServer.get(server1).latencyNanos;
+				long latency2 = healthByServer.get(server2).latencyNanos;
+				return latency1 < latency2 ? -1 : (latency1 == latency2 ? 0 : 1);
+			}
+		});
+		healthyServers.addAll(unhealthyServers);
+		return healthyServers;
+	}
+
+	/**
+	 * Marks the server unhealthy, e.g. after a failed session creation, so
+	 * that it is tried last until the health expires.
+	 */
+	public void markUnhealthy(String server) {
+		healthByServer.put(server, new Health(false, Long.MAX_VALUE));
+	}
+
+	public void recordServer(AppiumDriver webDriver, String server) {
+		synchronized (serverByDriver) {
+			serverByDriver.put(webDriver, server);
+		}
+	}
+
+	/**
+	 * Returns the server the driver was created on or null
+	 */
+	public String getServer(AppiumDriver webDriver) {
+		synchronized (serverByDriver) {
+			return serverByDriver.get(webDriver);
+		}
+	}
+
+	/**
+	 * Probes the servers without a current health concurrently and waits for
+	 * the results up to the probe timeout. Has to be called before
+	 * {@link #rank(List, Map)}, outside any lock held while ranking.
+	 */
+	public void probe(List<String> servers) {
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		long now = System.nanoTime();
+		for (final String server : servers) {
+			Health health = healthByServer.get(server);
+			if (health != null && now - health.checkedNanos < HEALTH_TTL_NANOS) {
+				continue;
+			}
+			futures.add(probeExecutor.submit(new Runnable() {
+
+				@Override
+				public void run() {
+					healthByServer.put(server, probe(server));
+				}
+			}));
+		}
+		long deadline = now + TimeUnit.MILLISECONDS.toNanos(2 * PROBE_TIMEOUT_MILLIS);
+		for (Future<?> future : futures) {
+			try {
+				future.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+			} catch (Exception e) {
+				// servers without result count as unhealthy
+			}
+		}
+	}
+
+	protected Health probe(String server) {
+		long start = System.nanoTime();
+		try {
+			HttpURLConnection connection = (HttpURLConnection) new URL(server.replaceAll("/+$", "") + "/status")
+					.openConnection();
+			connection.setConnectTimeout(PROBE_TIMEOUT_MILLIS);
+			connection.setReadTimeout(PROBE_TIMEOUT_MILLIS);
+			try {
+				int responseCode = connection.getResponseCode();
+				InputStream in = responseCode < 400 ? connection.getInputStream() : connection.getErrorStream();
+				if (in != null) {
+					in.close();
+				}
+				return new Health(responseCode == HttpURLConnection.HTTP_OK, System.nanoTime() - start);
+			} finally {
+				connection.disconnect();
+			}
+		} catch (IOException e) {
+			return new Health(false, Long.MAX_VALUE);
+		}
+	}
+
+	protected static class Health {
+		protected final boolean healthy;
+
+		protected final long latencyNanos;
+
+		protected final long checkedNanos = System.nanoTime();
+
+		protected Health(boolean healthy, long latencyNanos) {
+			this.healthy = healthy;
+			this.latencyNanos = latencyNanos;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package com.github.mobile.appiumlibrary.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.github.mobile.appiumlibrary.utils.DriverCache.SessionIdAliasWebDriverTuple;
+
+/**
+ * Background monitor of the open sessions. Sends a cheap keepalive command
+ * to every session idle for longer than the keepalive interval, so that the
+ * server does not drop it after its new command timeout, and marks sessions
+ * dead whose keepalives fail repeatedly.
+ */
+public class SessionMonitor {
+
+	/**
+	 * Number of consecutive failed keepalives after which a session is dead
+	 */
+	public static final int MAX_KEEPALIVE_FAILURES = 2;
+
+	protected static final long MIN_CHECK_PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	protected final DriverCache driverCache;
+
+	/**
+	 * Sends the keepalives, so that a hung session does not delay the others
+	 */
+	protected final ExecutorService keepaliveExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory(
+			"appiumlibrary-keepalive"));
+
+	/**
+	 * Sessions with a keepalive in flight
+	 */
+	protected final Map<SessionIdAliasWebDriverTuple, Boolean> pendingKeepalives = new ConcurrentHashMap<SessionIdAliasWebDriverTuple, Boolean>();
+
+	/**
+	 * Checks the sessions periodically while running, guarded by this
+	 */
+	protected ScheduledExecutorService scheduler;
+
+	protected volatile long keepaliveIntervalNanos;
+
+	public SessionMonitor(DriverCache driverCache) {
+		this.driverCache = driverCache;
+	}
+
+	/**
+	 * Starts or restarts monitoring with the keepalive interval, which should
+	 * be well below the new command timeout of the server.
+	 */
+	public synchronized void start(long keepaliveIntervalNanos) {
+		stop();
+		this.keepaliveIntervalNanos = keepaliveIntervalNanos;
+		long checkPeriodNanos = Math.max(keepaliveIntervalNanos / 4, MIN_CHECK_PERIOD_NANOS);
+		scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("appiumlibrary-monitor"));
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				checkSessions();
+			}
+		}, checkPeriodNanos, checkPeriodNanos, TimeUnit.NANOSECONDS);
+	}
+
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	public synchronized boolean isRunning() {
+		return scheduler != null;
+	}
+
+	protected void checkSessions() {
+		long now = System.nanoTime();
+		for (SessionIdAliasWebDriverTuple sessionIdAliasWebDriverTuple : driverCache.getWebDrivers()) {
+			if (sessionIdAliasWebDriverTuple.closed || sessionIdAliasWebDriverTuple.dead
+					|| now - sessionIdAliasWebDriverTuple.lastCommandNanos < keepaliveIntervalNanos
+					|| now - sessionIdAliasWebDriverTuple.lastKeepaliveNanos < keepaliveIntervalNanos) {
+				continue;
+			}
+			if (pendingKeepalives.put(sessionIdAliasWebDriverTuple, Boolean.TRUE) == null) {
+				sendKeepalive(sessionIdAliasWebDriverTuple);
+			}
+		}
+	}
+
+	protected void sendKeepalive(final SessionIdAliasWebDriverTuple sessionIdAliasWebDriverTuple) {
+		keepaliveExecutor.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				long start = System.nanoTime();
+				try {
+					sessionIdAliasWebDriverTuple.webDriver.getContext();
+					long end = System.nanoTime();
+					sessionIdAliasWebDriverTuple.lastLatencyNanos = end - start;
+					sessionIdAliasWebDriverTuple.lastKeepaliveNanos = end;
+					sessionIdAliasWebDriverTuple.keepaliveFailures = 0;
+				} catch (RuntimeException e) {
+					sessionIdAliasWebDriverTuple.lastLatencyNanos = System.nanoTime() - start;
+					if (++sessionIdAliasWebDriverTuple.keepaliveFailures >= MAX_KEEPALIVE_FAILURES
+							&& !sessionIdAliasWebDriverTuple.closed) {
+						sessionIdAliasWebDriverTuple.deadReason = e.getMessage();
+						sessionIdAliasWebDriverTuple.dead = true;
+					}
+				} finally {
+					pendingKeepalives.remove(sessionIdAliasWebDriverTuple);
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,394 @@
+package com.github.mobile.appiumlibrary.utils;
+
+import io.appium.java_client.AppiumDriver;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of warm sessions for registered capability profiles. Sessions are
+ * created in the background, leased by `Open Application` and recycled on
+ * `Close Application` instead of being quit. Idle sessions are kept alive by
+ * a cheap command, so that the server does not drop them after its new
+ * command timeout, and checked again before they are leased.
+ */
+public class SessionPool {
+
+	/**
+	 * Interval of the keepalives of idle sessions, well below the default new
+	 * command timeout of Appium of 60 seconds
+	 */
+	public static final long KEEPALIVE_PERIOD_NANOS = TimeUnit.SECONDS.toNanos(20);
+
+	/**
+	 * Creates a new session of a profile
+	 */
+	public static interface SessionFactory {
+		AppiumDriver create() throws Exception;
+	}
+
+	/**
+	 * Prepares a released session for the next lease
+	 */
+	public static interface SessionCleanup {
+		void cleanup(AppiumDriver webDriver) throws Exception;
+	}
+
+	protected final ExecutorService executor = Executors.newCachedThreadPool(new DaemonThreadFactory("appiumlibrary-pool"));
+
+	protected final Map<String, Profile> profiles = new ConcurrentHashMap<String, Profile>();
+
+	protected final AtomicLong hits = new AtomicLong();
+
+	protected final AtomicLong misses = new AtomicLong();
+
+	protected final AtomicLong created = new AtomicLong();
+
+	protected final AtomicLong recycled = new AtomicLong();
+
+	protected final AtomicLong expired = new AtomicLong();
+
+	protected final AtomicLong failures = new AtomicLong();
+
+	protected final AtomicLong dead = new AtomicLong();
+
+	/**
+	 * Sends the keepalives of idle sessions while profiles are registered,
+	 * guarded by this
+	 */
+	protected ScheduledExecutorService keepaliveScheduler;
+
+	public static String toKey(String remoteURL, String desiredCaps) {
+		return remoteURL.trim() + " " + desiredCaps.trim();
+	}
+
+	/**
+	 * Registers a profile and starts creating its sessions. Idle sessions of a
+	 * previous registration of the profile are quit.
+	 */
+	public void register(String key, int size, long idleTimeoutNanos, SessionFactory factory, SessionCleanup cleanup) {
+		Profile profile = new Profile(key, size, idleTimeoutNanos, factory, cleanup);
+		Profile oldProfile = profiles.put(key, profile);
+		if (oldProfile != null) {
+			oldProfile.drain();
+		}
+		profile.fill();
+		startKeepalive();
+	}
+
+	public boolean hasProfile(String key) {
+		return profiles.containsKey(key);
+	}
+
+	/**
+	 * Returns a warm session of the profile or null, if none is available.
+	 * Sessions the server dropped are quit and replaced.
+	 */
+	public AppiumDriver lease(String key) {
+		Profile profile = profiles.get(key);
+		if (profile == null) {
+			return null;
+		}
+		AppiumDriver webDriver = profile.poll();
+		if (webDriver != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+		}
+		profile.fill();
+		return webDriver;
+	}
+
+	/**
+	 * Cleans the session up in the background and keeps it for the next
+	 * lease, or quits it if it is not needed or the cleanup fails.
+	 */
+	public void release(String key, final AppiumDriver webDriver) {
+		final Profile profile = profiles.get(key);
+		if (profile == null) {
+			webDriver.quit();
+			return;
+		}
+		executor.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					profile.cleanup.cleanup(webDriver);
+				} catch (Exception e) {
+					failures.incrementAndGet();
+					quitQuietly(webDriver);
+					return;
+				}
+				if (profile.offer(webDriver)) {
+					recycled.incrementAndGet();
+				} else {
+					quitQuietly(webDriver);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Quits all idle sessions and removes all profiles. Leased sessions are
+	 * quit when they are released.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (keepaliveScheduler != null) {
+				keepaliveScheduler.shutdownNow();
+				keepaliveScheduler = null;
+			}
+		}
+		List<Profile> closedProfiles = new ArrayList<Profile>(profiles.values());
+		profiles.clear();
+		for (Profile profile : closedProfiles) {
+			profile.drain();
+		}
+	}
+
+	protected synchronized void startKeepalive() {
+		if (keepaliveScheduler != null) {
+			return;
+		}
+		keepaliveScheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("appiumlibrary-pool-keepalive"));
+		keepaliveScheduler.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				for (Profile profile : profiles.values()) {
+					profile.keepalive();
+				}
+			}
+		}, KEEPALIVE_PERIOD_NANOS, KEEPALIVE_PERIOD_NANOS, TimeUnit.NANOSECONDS);
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the number of idle sessions of all profiles
+	 */
+	public int getIdleCount() {
+		int idle = 0;
+		for (Profile profile : profiles.values()) {
+			idle += profile.getIdleCount();
+		}
+		return idle;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"%d profiles, %d idle sessions, %d hits, %d misses, %d created, %d recycled, %d expired, %d dead, %d failures",
+				profiles.size(), getIdleCount(), hits.get(), misses.get(), created.get(), recycled.get(), expired.get(), dead.get(),
+				failures.get());
+	}
+
+	/**
+	 * Sends the same cheap command as the keepalives of {@link SessionMonitor}
+	 * and returns false, if the session is gone
+	 */
+	protected boolean isAlive(AppiumDriver webDriver) {
+		try {
+			webDriver.getContext();
+			return true;
+		} catch (RuntimeException e) {
+			return false;
+		}
+	}
+
+	protected void quitQuietly(AppiumDriver webDriver) {
+		try {
+			webDriver.quit();
+		} catch (RuntimeException e) {
+			// the session is gone anyway
+		}
+	}
+
+	protected void quitInBackground(final AppiumDriver webDriver) {
+		executor.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				quitQuietly(webDriver);
+			}
+		});
+	}
+
+	protected static class IdleSession {
+		protected final AppiumDriver webDriver;
+
+		protected final long idleSince = System.nanoTime();
+
+		protected IdleSession(AppiumDriver webDriver) {
+			this.webDriver = webDriver;
+		}
+	}
+
+	protected class Profile {
+		protected final String key;
+
+		protected final int size;
+
+		protected final long idleTimeoutNanos;
+
+		protected final SessionFactory factory;
+
+		protected final SessionCleanup cleanup;
+
+		/**
+		 * Idle sessions, most recently released last, guarded by this
+		 */
+		protected final Deque<IdleSession> idle = new ArrayDeque<IdleSession>();
+
+		/**
+		 * Number of sessions being created, guarded by this
+		 */
+		protected int pending;
+
+		protected boolean drained;
+
+		protected Profile(String key, int size, long idleTimeoutNanos, SessionFactory factory, SessionCleanup cleanup) {
+			this.key = key;
+			this.size = size;
+			this.idleTimeoutNanos = idleTimeoutNanos;
+			this.factory = factory;
+			this.cleanup = cleanup;
+		}
+
+		protected AppiumDriver poll() {
+			for (;;) {
+				IdleSession idleSession;
+				synchronized (this) {
+					idleSession = idle.pollLast();
+				}
+				if (idleSession == null) {
+					return null;
+				}
+				if (idleTimeoutNanos > 0 && System.nanoTime() - idleSession.idleSince > idleTimeoutNanos) {
+					// the server may already have dropped the session
+					expired.incrementAndGet();
+					quitInBackground(idleSession.webDriver);
+					continue;
+				}
+				if (!isAlive(idleSession.webDriver)) {
+					dead.incrementAndGet();
+					quitInBackground(idleSession.webDriver);
+					continue;
+				}
+				return idleSession.webDriver;
+			}
+		}
+
+		protected synchronized boolean offer(AppiumDriver webDriver) {
+			if (drained || idle.size() >= size) {
+				return false;
+			}
+			idle.addLast(new IdleSession(webDriver));
+			return true;
+		}
+
+		/**
+		 * Starts creating the sessions missing to reach the pool size.
+		 */
+		protected void fill() {
+			int missing;
+			synchronized (this) {
+				missing = drained ? 0 : size - idle.size() - pending;
+				pending += Math.max(missing, 0);
+			}
+			for (int i = 0; i < missing; i++) {
+				executor.submit(new Runnable() {
+
+					@Override
+					public void run() {
+						AppiumDriver webDriver = null;
+						try {
+							webDriver = factory.create();
+							created.incrementAndGet();
+						} catch (Exception e) {
+							failures.incrementAndGet();
+						}
+						boolean kept;
+						synchronized (Profile.this) {
+							pending--;
+							kept = webDriver != null && !drained;
+							if (kept) {
+								idle.addLast(new IdleSession(webDriver));
+							}
+						}
+						if (webDriver != null && !kept) {
+							quitQuietly(webDriver);
+						}
+					}
+				});
+			}
+		}
+
+		/**
+		 * Replaces the idle sessions past the idle timeout and sends a
+		 * keepalive to the others, replacing the ones that are gone. Sessions
+		 * leased meanwhile are left to the lessee.
+		 */
+		protected void keepalive() {
+			List<IdleSession> idleSessions;
+			synchronized (this) {
+				idleSessions = new ArrayList<IdleSession>(idle);
+			}
+			boolean lost = false;
+			for (IdleSession idleSession : idleSessions) {
+				boolean expire = idleTimeoutNanos > 0 && System.nanoTime() - idleSession.idleSince > idleTimeoutNanos;
+				if (!expire && isAlive(idleSession.webDriver)) {
+					continue;
+				}
+				boolean removed;
+				synchronized (this) {
+					removed = idle.remove(idleSession);
+				}
+				if (removed) {
+					if (expire) {
+						expired.incrementAndGet();
+					} else {
+						dead.incrementAndGet();
+					}
+					quitInBackground(idleSession.webDriver);
+					lost = true;
+				}
+			}
+			if (lost) {
+				fill();
+			}
+		}
+
+		protected void drain() {
+			List<IdleSession> drainedSessions;
+			synchronized (this) {
+				drained = true;
+				drainedSessions = new ArrayList<IdleSession>(idle);
+				idle.clear();
+			}
+			for (IdleSession idleSession : drainedSessions) {
+				quitInBackground(idleSession.webDriver);
+			}
+		}
+
+		protected synchronized int getIdleCount() {
+			return idle.size();
+		}
+	}
+}
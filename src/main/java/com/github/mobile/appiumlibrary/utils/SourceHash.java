@@ -0,0 +1,74 @@
+package com.github.mobile.appiumlibrary.utils;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 64 bit FNV-1a hash of a page source. The hash is computed over the
+ * characters in place, skipping the matches of the ignore patterns without
+ * building a filtered copy of the source.
+ */
+public abstract class SourceHash {
+
+	protected static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+	protected static final long FNV_PRIME = 0x100000001b3L;
+
+	public static long hash(String source, List<Pattern> ignorePatterns) {
+		long hash = FNV_OFFSET_BASIS;
+		if (ignorePatterns.isEmpty()) {
+			return update(hash, source, 0, source.length());
+		}
+
+		Matcher[] matchers = new Matcher[ignorePatterns.size()];
+		int[] starts = new int[matchers.length];
+		for (int i = 0; i < matchers.length; i++) {
+			matchers[i] = ignorePatterns.get(i).matcher(source);
+			starts[i] = find(matchers[i], 0);
+		}
+		int position = 0;
+		for (;;) {
+			// the next ignored region of any pattern
+			int next = -1;
+			for (int i = 0; i < matchers.length; i++) {
+				if (starts[i] != -1 && starts[i] < position) {
+					starts[i] = find(matchers[i], position);
+				}
+				if (starts[i] != -1 && (next == -1 || starts[i] < starts[next])) {
+					next = i;
+				}
+			}
+			if (next == -1) {
+				return update(hash, source, position, source.length());
+			}
+			Matcher matcher = matchers[next];
+			hash = update(hash, source, position, matcher.start());
+			if (matcher.end() > matcher.start()) {
+				// a separator, so that moving a region changes the hash
+				hash = (hash ^ 0xffff) * FNV_PRIME;
+				position = matcher.end();
+			} else if (matcher.start() < source.length()) {
+				// empty match, nothing to skip
+				hash = update(hash, source, matcher.start(), matcher.start() + 1);
+				position = matcher.start() + 1;
+			} else {
+				return hash;
+			}
+			starts[next] = find(matcher, position);
+		}
+	}
+
+	protected static int find(Matcher matcher, int from) {
+		return matcher.find(from) ? matcher.start() : -1;
+	}
+
+	protected static long update(long hash, String source, int start, int end) {
+		for (int i = start; i < end; i++) {
+			char c = source.charAt(i);
+			hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+			hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+		}
+		return hash;
+	}
+}
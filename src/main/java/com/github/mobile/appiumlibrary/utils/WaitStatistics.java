@@ -0,0 +1,52 @@
+package com.github.mobile.appiumlibrary.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts the polls and the time spent by the waiting keywords.
+ */
+public class WaitStatistics {
+
+	protected long waits;
+
+	protected long timeouts;
+
+	protected long polls;
+
+	protected long totalNanos;
+
+	protected long maxNanos;
+
+	public synchronized void record(int polls, long nanos, boolean timedOut) {
+		this.waits++;
+		this.polls += polls;
+		this.totalNanos += nanos;
+		this.maxNanos = Math.max(maxNanos, nanos);
+		if (timedOut) {
+			this.timeouts++;
+		}
+	}
+
+	public synchronized void reset() {
+		waits = 0;
+		timeouts = 0;
+		polls = 0;
+		totalNanos = 0;
+		maxNanos = 0;
+	}
+
+	public synchronized long getWaits() {
+		return waits;
+	}
+
+	public synchronized long getPolls() {
+		return polls;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%d waits, %d timeouts, %d polls (%.1f per wait), %d ms total, %d ms average, %d ms max",
+				waits, timeouts, polls, waits > 0 ? (double) polls / waits : 0.0, TimeUnit.NANOSECONDS.toMillis(totalNanos),
+				waits > 0 ? TimeUnit.NANOSECONDS.toMillis(totalNanos / waits) : 0, TimeUnit.NANOSECONDS.toMillis(maxNanos));
+	}
+}
@@ -0,0 +1,214 @@
+package com.github.mobile.appiumlibrary.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import io.appium.java_client.AppiumDriver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.mobile.appiumlibrary.AppiumLibraryNonFatalException;
+
+public class DriverCacheTest {
+
+	static final int THREADS = 16;
+
+	static final int ITERATIONS = 200;
+
+	DriverCache driverCache;
+
+	ExecutorService executor;
+
+	@Before
+	public void setUp() {
+		driverCache = new DriverCache();
+		executor = Executors.newFixedThreadPool(THREADS);
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		executor.shutdownNow();
+		executor.awaitTermination(10, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void threadsActOnTheirOwnApplications() throws Exception {
+		driverCache.setPerThreadCurrent(true);
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (int i = 0; i < THREADS; i++) {
+			final int thread = i;
+			futures.add(executor.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					start.await();
+					for (int j = 0; j < ITERATIONS; j++) {
+						AppiumDriver first = mock(AppiumDriver.class);
+						AppiumDriver second = mock(AppiumDriver.class);
+						String firstAlias = String.format("first-%d-%d", thread, j);
+						String secondAlias = String.format("second-%d-%d", thread, j);
+						driverCache.register(first, firstAlias);
+						assertSame(first, driverCache.getCurrent());
+						driverCache.register(second, secondAlias);
+						assertSame(second, driverCache.getCurrent());
+						driverCache.switchApplication(firstAlias);
+						assertSame(first, driverCache.getCurrent());
+						driverCache.close();
+						verify(first).quit();
+						driverCache.switchApplication(secondAlias);
+						assertSame(second, driverCache.getCurrent());
+						driverCache.close();
+						verify(second).quit();
+					}
+					return null;
+				}
+			}));
+		}
+		start.countDown();
+		for (Future<Void> future : futures) {
+			future.get(60, TimeUnit.SECONDS);
+		}
+		assertEquals(0, driverCache.getWebDrivers().size());
+	}
+
+	@Test
+	public void applicationClosedByAnotherThreadFails() throws Exception {
+		driverCache.setPerThreadCurrent(true);
+		final AppiumDriver driver = mock(AppiumDriver.class);
+		final CountDownLatch opened = new CountDownLatch(1);
+		final CountDownLatch closed = new CountDownLatch(1);
+		Future<Void> future = executor.submit(new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				driverCache.register(driver, "closed-elsewhere");
+				opened.countDown();
+				closed.await();
+				try {
+					driverCache.getCurrent();
+					fail("The closed application was used");
+				} catch (AppiumLibraryNonFatalException e) {
+					assertTrue(e.getMessage(), e.getMessage().contains("was closed by another thread"));
+				}
+				// closing it again does nothing
+				driverCache.close();
+				return null;
+			}
+		});
+		assertTrue(opened.await(10, TimeUnit.SECONDS));
+		AppiumDriver other = mock(AppiumDriver.class);
+		driverCache.register(other, "other");
+		driverCache.switchApplication("closed-elsewhere");
+		driverCache.close();
+		closed.countDown();
+		future.get(10, TimeUnit.SECONDS);
+		verify(driver).quit();
+		assertEquals(1, driverCache.getWebDrivers().size());
+	}
+
+	@Test
+	public void threadSwitchesAwayFromApplicationClosedByAnotherThread() throws Exception {
+		driverCache.setPerThreadCurrent(true);
+		final AppiumDriver a = mock(AppiumDriver.class);
+		final AppiumDriver b = mock(AppiumDriver.class);
+		final CountDownLatch opened = new CountDownLatch(1);
+		final CountDownLatch closed = new CountDownLatch(1);
+		driverCache.register(b, "b");
+		Future<Void> future = executor.submit(new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				driverCache.register(a, "a");
+				opened.countDown();
+				closed.await();
+				// as Switch Application does
+				driverCache.getCurrentSessionId();
+				driverCache.switchApplication("b");
+				assertSame(b, driverCache.getCurrent());
+				return null;
+			}
+		});
+		assertTrue(opened.await(10, TimeUnit.SECONDS));
+		driverCache.switchApplication("a");
+		driverCache.close();
+		closed.countDown();
+		future.get(10, TimeUnit.SECONDS);
+		verify(a).quit();
+	}
+
+	@Test
+	public void sharedApplicationIsClosedOnce() throws Exception {
+		for (int i = 0; i < ITERATIONS; i++) {
+			final AppiumDriver driver = mock(AppiumDriver.class);
+			driverCache.register(driver, null);
+			final CyclicBarrier start = new CyclicBarrier(THREADS);
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (int j = 0; j < THREADS; j++) {
+				futures.add(executor.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+						start.await();
+						driverCache.close();
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures) {
+				future.get(10, TimeUnit.SECONDS);
+			}
+			verify(driver, times(1)).quit();
+			assertEquals(0, driverCache.getWebDrivers().size());
+		}
+	}
+
+	@Test
+	public void currentApplicationsOfAllThreadsAreNotEvicted() throws Exception {
+		driverCache.setPerThreadCurrent(true);
+		final AppiumDriver driver = mock(AppiumDriver.class);
+		final CountDownLatch opened = new CountDownLatch(1);
+		final CountDownLatch evicted = new CountDownLatch(1);
+		Future<Void> future = executor.submit(new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				driverCache.register(driver, "other-thread");
+				opened.countDown();
+				evicted.await();
+				assertSame(driver, driverCache.getCurrent());
+				driverCache.close();
+				return null;
+			}
+		});
+		assertTrue(opened.await(10, TimeUnit.SECONDS));
+		AppiumDriver current = mock(AppiumDriver.class);
+		AppiumDriver idle = mock(AppiumDriver.class);
+		driverCache.register(idle, "idle");
+		driverCache.register(current, "current");
+		driverCache.setEvictionPolicy(0, 1);
+		assertEquals(2, driverCache.getWebDrivers().size());
+		verify(idle, timeout(5000)).quit();
+		evicted.countDown();
+		future.get(10, TimeUnit.SECONDS);
+		verify(driver).quit();
+		assertSame(current, driverCache.getCurrent());
+	}
+}
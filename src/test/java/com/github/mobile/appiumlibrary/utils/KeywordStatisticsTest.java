@@ -0,0 +1,57 @@
+package com.github.mobile.appiumlibrary.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import io.appium.java_client.AppiumDriver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.mobile.appiumlibrary.keywords.ApplicationManagement;
+
+/**
+ * Runs against the keyword classes woven with the KeywordTimingAspect by the
+ * aspectj-maven-plugin.
+ */
+public class KeywordStatisticsTest {
+
+	KeywordStatistics keywordStatistics = KeywordStatistics.getInstance();
+
+	@Before
+	public void setUp() {
+		keywordStatistics.reset();
+	}
+
+	@After
+	public void tearDown() {
+		keywordStatistics.reset();
+	}
+
+	@Test
+	public void nestedKeywordCallsAreCountedOnce() {
+		ApplicationManagement applicationManagement = new ApplicationManagement();
+		// the overload calls the keyword with all arguments
+		applicationManagement.usePooledHttpTransport();
+		assertEquals(1, keywordStatistics.latencyByKeyword.size());
+		assertEquals(1, keywordStatistics.latencyByKeyword.get("Use Pooled Http Transport").getCount());
+		applicationManagement.usePooledHttpTransport("5 seconds");
+		assertEquals(2, keywordStatistics.latencyByKeyword.get("Use Pooled Http Transport").getCount());
+	}
+
+	@Test
+	public void callsAreRecordedForTheApplicationOfTheirLibraryInstance() {
+		ApplicationManagement applicationManagement = new ApplicationManagement();
+		String sessionId = applicationManagement.getDriverCache().register(mock(AppiumDriver.class), null);
+		// another library instance does not take the calls over
+		new ApplicationManagement();
+		applicationManagement.usePooledHttpTransport();
+		assertEquals(1, keywordStatistics.latencyBySession.get(sessionId).getCount());
+	}
+
+	@Test
+	public void keywordNamesAreDerivedFromMethodNames() {
+		assertEquals("Tap Element", KeywordStatistics.toKeywordName("tapElement"));
+		assertEquals("Use Pooled Http Transport", KeywordStatistics.toKeywordName("usePooledHttpTransport"));
+	}
+}
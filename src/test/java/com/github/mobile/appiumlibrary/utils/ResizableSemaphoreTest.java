@@ -0,0 +1,35 @@
+package com.github.mobile.appiumlibrary.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ResizableSemaphoreTest {
+
+	@Test
+	public void shrinkingWaitsForHeldPermits() {
+		ResizableSemaphore semaphore = new ResizableSemaphore(2);
+		assertTrue(semaphore.tryAcquire());
+		assertTrue(semaphore.tryAcquire());
+		semaphore.resize(1);
+		// both holders release, but only one permit remains
+		semaphore.release();
+		assertFalse(semaphore.tryAcquire());
+		semaphore.release();
+		assertTrue(semaphore.tryAcquire());
+		assertFalse(semaphore.tryAcquire());
+		assertEquals(1, semaphore.getSize());
+	}
+
+	@Test
+	public void growingReleasesWaiters() {
+		ResizableSemaphore semaphore = new ResizableSemaphore(1);
+		assertTrue(semaphore.tryAcquire());
+		semaphore.resize(3);
+		assertTrue(semaphore.tryAcquire());
+		assertTrue(semaphore.tryAcquire());
+		assertFalse(semaphore.tryAcquire());
+	}
+}
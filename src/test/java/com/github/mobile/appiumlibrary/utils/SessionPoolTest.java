@@ -0,0 +1,111 @@
+package com.github.mobile.appiumlibrary.utils;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import io.appium.java_client.AppiumDriver;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openqa.selenium.WebDriverException;
+
+import com.github.mobile.appiumlibrary.utils.SessionPool.SessionCleanup;
+import com.github.mobile.appiumlibrary.utils.SessionPool.SessionFactory;
+
+public class SessionPoolTest {
+
+	static final String KEY = SessionPool.toKey("http://localhost:4723/wd/hub", "platformName=Android");
+
+	SessionPool sessionPool;
+
+	AppiumDriver deadDriver;
+
+	AppiumDriver aliveDriver;
+
+	@Before
+	public void setUp() {
+		sessionPool = new SessionPool();
+		deadDriver = mock(AppiumDriver.class);
+		when(deadDriver.getContext()).thenThrow(new WebDriverException("session is gone"));
+		aliveDriver = mock(AppiumDriver.class);
+		when(aliveDriver.getContext()).thenReturn("NATIVE_APP");
+	}
+
+	@After
+	public void tearDown() {
+		sessionPool.close();
+	}
+
+	@Test
+	public void leaseSkipsSessionsTheServerDropped() throws Exception {
+		registerProfile(0, deadDriver, aliveDriver);
+		awaitIdleSessions(1);
+		assertNull(sessionPool.lease(KEY));
+		verify(deadDriver, timeout(5000)).quit();
+		assertTrue(sessionPool.toString(), sessionPool.toString().contains("1 dead"));
+		awaitIdleSessions(1);
+		assertSame(aliveDriver, sessionPool.lease(KEY));
+	}
+
+	@Test
+	public void keepaliveReplacesSessionsTheServerDropped() throws Exception {
+		registerProfile(0, deadDriver, aliveDriver);
+		awaitIdleSessions(1);
+		sessionPool.profiles.get(KEY).keepalive();
+		verify(deadDriver, timeout(5000)).quit();
+		awaitIdleSessions(1);
+		assertSame(aliveDriver, sessionPool.lease(KEY));
+	}
+
+	@Test
+	public void keepaliveReplacesExpiredSessions() throws Exception {
+		AppiumDriver expiredDriver = mock(AppiumDriver.class);
+		when(expiredDriver.getContext()).thenReturn("NATIVE_APP");
+		registerProfile(TimeUnit.MILLISECONDS.toNanos(50), expiredDriver, aliveDriver);
+		awaitIdleSessions(1);
+		Thread.sleep(100);
+		sessionPool.profiles.get(KEY).keepalive();
+		verify(expiredDriver, timeout(5000)).quit();
+		assertTrue(sessionPool.toString(), sessionPool.toString().contains("1 expired"));
+		// refilled with the next session
+		awaitIdleSessions(1);
+	}
+
+	/**
+	 * Registers a profile of one session, which creates the drivers in the
+	 * given order and cleans up nothing.
+	 */
+	void registerProfile(long idleTimeoutNanos, AppiumDriver... createdDrivers) {
+		final ConcurrentLinkedQueue<AppiumDriver> drivers = new ConcurrentLinkedQueue<AppiumDriver>(
+				Arrays.asList(createdDrivers));
+		sessionPool.register(KEY, 1, idleTimeoutNanos, new SessionFactory() {
+
+			@Override
+			public AppiumDriver create() {
+				return drivers.poll();
+			}
+		}, new SessionCleanup() {
+
+			@Override
+			public void cleanup(AppiumDriver webDriver) {
+			}
+		});
+	}
+
+	void awaitIdleSessions(int count) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (sessionPool.profiles.get(KEY).getIdleCount() < count) {
+			assertTrue("Sessions were not created", System.nanoTime() < deadline);
+			Thread.sleep(10);
+		}
+	}
+}